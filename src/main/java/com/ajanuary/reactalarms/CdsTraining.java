@@ -0,0 +1,162 @@
+package com.ajanuary.reactalarms;
+
+import com.ajanuary.reactalarms.bot.Alarm;
+import com.ajanuary.reactalarms.bot.Config;
+import com.ajanuary.reactalarms.bot.DMStatus;
+import com.ajanuary.reactalarms.bot.ScheduledDM;
+import com.ajanuary.reactalarms.bot.ThreadFingerprint;
+import com.ajanuary.reactalarms.bot.TimeFormat;
+import com.ajanuary.reactalarms.bot.TimeParser;
+import com.ajanuary.reactalarms.bot.WithId;
+import com.ajanuary.reactalarms.db.SqliteDatabase;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.Enumeration;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * A stand-in for a real run of the bot, used to work out which classes should go in the class data
+ * sharing archive (see the cdsArchive task in build.gradle).
+ *
+ * <p>We can't connect to Discord at build time, so this goes through the same startup steps as
+ * {@link RunBot} against a throwaway database, and then loads (without initialising) the rest of the
+ * classes from the libraries the bot uses when it's connected.
+ */
+public class CdsTraining {
+  private static final Logger LOGGER = LogManager.getLogger();
+
+  // Libraries whose classes mostly get loaded when connecting to and talking to Discord.
+  private static final List<String> PRELOAD_PREFIXES = List.of(
+      "com/ajanuary/",
+      "net/dv8tion/jda/",
+      "com/neovisionaries/ws/",
+      "okhttp3/",
+      "okio/",
+      "com/fasterxml/jackson/",
+      "gnu/trove/",
+      "org/apache/commons/collections4/",
+      "org/apache/logging/log4j/",
+      "com/lmax/disruptor/",
+      "org/sqlite/",
+      "org/tomlj/",
+      "net/sourceforge/argparse4j/",
+      "io/github/cdimascio/");
+
+  public static void main(String[] args) throws IOException, SQLException, URISyntaxException {
+    if (args.length != 1) {
+      System.err.println("Usage: CdsTraining <work directory>");
+      System.exit(1);
+      return;
+    }
+
+    Path workDir = Paths.get(args[0]);
+    Files.createDirectories(workDir);
+    Path databasePath = workDir.resolve("training.db");
+    Files.deleteIfExists(databasePath);
+    Path configPath = workDir.resolve("config.toml");
+    Files.writeString(configPath, """
+        database = "%s"
+        zone = "Europe/London"
+        time_formats = ["24h", "12h", "range"]
+
+        [channel.training]
+        id = "1000000000000000001"
+        date = 2023-02-28
+        """.formatted(databasePath.toString().replace("\\", "\\\\")));
+
+    LOGGER.info("Training class data sharing archive in {}", workDir);
+    Config config = Config.parse(configPath.toFile());
+
+    SqliteDatabase database = new SqliteDatabase(config.database());
+    database.createSchema();
+    database.migrateSchema();
+
+    TimeParser timeParser = new TimeParser(EnumSet.allOf(TimeFormat.class));
+    ZonedDateTime time = ZonedDateTime.of(config.channels().get(1000000000000000001L).date(), timeParser.parse("13:00 Opening ceremony").orElseThrow(), config.zoneId());
+    timeParser.parse("1-2pm Panel");
+    database.addAlarm(new Alarm(1000000000000000001L, 2000000000000000001L, time));
+    database.getAlarmForThread(2000000000000000001L);
+    database.getNextAlarmTime();
+    database.saveThreadFingerprint(new ThreadFingerprint(2000000000000000001L, "training", Optional.of(time.toInstant())));
+    database.getThreadFingerprints();
+    for (WithId<Alarm> alarm : database.getEventsBefore(time)) {
+      database.deleteAlarm(alarm.id());
+    }
+
+    database.addScheduledDM(new ScheduledDM(1000000000000000001L, 2000000000000000001L, 3000000000000000001L, time, "13:00 Opening ceremony", "https://discord.com", "Training", Optional.of("Tag")));
+    database.getNextDMTime();
+    for (WithId<ScheduledDM> dm : database.getDMsScheduledBefore(time)) {
+      database.setScheduledDMStatus(dm.id(), DMStatus.IN_FLIGHT);
+      database.recordFailedDMAttempt(dm.id());
+      database.rescheduleDM(dm.id(), time);
+      database.setScheduledDMStatus(dm.id(), DMStatus.SENT);
+    }
+    database.resetInFlightDMs();
+    database.getPendingDMThreadIdsBefore(time.plusDays(1));
+    database.deleteScheduledDMsBefore(time.plusDays(1));
+    database.compact();
+    database.getStorageStats();
+    database.close();
+
+    new MessageCreateBuilder()
+        .addContent("Training")
+        .addEmbeds(new EmbedBuilder().setTitle("Training", "https://discord.com").addField("Description", "Training", false).build())
+        .build();
+    // Set up everything RunBot does, short of actually connecting.
+    JDABuilder.createLight("training", List.of())
+        .enableIntents(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT)
+        .setActivity(Activity.playing("with time"))
+        .enableCache(CacheFlag.FORUM_TAGS);
+
+    int loaded = preloadClasses();
+    LOGGER.info("Loaded {} classes", Unbox.box(loaded));
+    LogManager.shutdown();
+  }
+
+  private static int preloadClasses() throws IOException, URISyntaxException {
+    File jar = new File(CdsTraining.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    if (!jar.isFile()) {
+      LOGGER.warn("Not running from a jar. Only the classes used by the training run will be archived");
+      return 0;
+    }
+
+    ClassLoader classLoader = CdsTraining.class.getClassLoader();
+    int loaded = 0;
+    try (JarFile jarFile = new JarFile(jar)) {
+      Enumeration<JarEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")
+            || PRELOAD_PREFIXES.stream().noneMatch(name::startsWith)) {
+          continue;
+        }
+        try {
+          Class.forName(name.substring(0, name.length() - ".class".length()).replace('/', '.'), false, classLoader);
+          loaded++;
+        } catch (Throwable e) {
+          // Usually an optional dependency that isn't on the classpath. Those classes won't be used.
+        }
+      }
+    }
+    return loaded;
+  }
+}
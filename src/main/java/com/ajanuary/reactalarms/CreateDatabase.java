@@ -24,6 +24,8 @@ public class CreateDatabase {
         Arguments.fileType().acceptSystemIn().verifyCanRead()).required(true);
     parser.addArgument("--overwrite").help("Whether to overwrite an existing database").setDefault(false).action(
         new StoreTrueArgumentAction());
+    parser.addArgument("--migrate").help("Upgrade an existing database to the latest schema instead of creating a new one").setDefault(false).action(
+        new StoreTrueArgumentAction());
     Namespace ns;
     try {
       ns = parser.parseArgs(args);
@@ -46,6 +48,11 @@ public class CreateDatabase {
 
     Path databasePath = Paths.get(config.database());
 
+    if (ns.getBoolean("migrate")) {
+      migrate(databasePath);
+      return;
+    }
+
     if (Files.exists(databasePath) && !ns.getBoolean("overwrite")) {
       System.err.println("Database " + databasePath.toAbsolutePath() + " already exists. Use --overwrite to overwrite it.");
       System.exit(1);
@@ -53,7 +60,7 @@ public class CreateDatabase {
     }
 
     try {
-      Files.deleteIfExists(Paths.get(ns.getString("database")));
+      Files.deleteIfExists(databasePath);
     } catch (IOException e) {
       System.err.println("Error deleting database");
       e.printStackTrace();
@@ -63,7 +70,7 @@ public class CreateDatabase {
 
     SqliteDatabase database;
     try {
-      database = new SqliteDatabase(ns.getString("database"));
+      database = new SqliteDatabase(databasePath.toString());
     } catch (SQLException e) {
       System.err.println("Error initializing database");
       e.printStackTrace();
@@ -79,4 +86,22 @@ public class CreateDatabase {
       System.exit(1);
     }
   }
+
+  private static void migrate(Path databasePath) {
+    if (!Files.exists(databasePath)) {
+      System.err.println("Database " + databasePath.toAbsolutePath() + " does not exist. Nothing to migrate.");
+      System.exit(1);
+      return;
+    }
+
+    try {
+      SqliteDatabase database = new SqliteDatabase(databasePath.toString());
+      database.migrateSchema();
+      database.close();
+    } catch (SQLException e) {
+      System.err.println("Error migrating schema");
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
 }
@@ -3,16 +3,21 @@ package com.ajanuary.reactalarms;
 import com.ajanuary.reactalarms.bot.Alarm;
 import com.ajanuary.reactalarms.bot.Bot;
 import com.ajanuary.reactalarms.bot.Config;
+import com.ajanuary.reactalarms.bot.ConfigWatcher;
+import com.ajanuary.reactalarms.bot.DescriptionPrefetcher;
+import com.ajanuary.reactalarms.bot.Housekeeping;
 import com.ajanuary.reactalarms.bot.ScheduledDM;
-import com.ajanuary.reactalarms.bot.Scheduler;
+import com.ajanuary.reactalarms.bot.TimerService;
 import com.ajanuary.reactalarms.bot.WithId;
-import com.ajanuary.reactalarms.db.Database;
 import com.ajanuary.reactalarms.db.SqliteDatabase;
 import io.github.cdimascio.dotenv.Dotenv;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.Collections;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
@@ -26,9 +31,12 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 
 public class RunBot {
   private static final Logger LOGGER = LogManager.getLogger();
+  private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+  private static final Duration PREFETCH_SPACING = Duration.ofMillis(250);
 
   public static void main(String[] args) throws InterruptedException {
     ArgumentParser parser = ArgumentParsers.newFor("run-bot").build()
@@ -45,40 +53,106 @@ public class RunBot {
       return;
     }
 
+    File configFile = ns.get("config");
     Config config;
     try {
-      File configFile = ns.get("config");
       config = Config.parse(configFile);
     } catch (IOException e) {
-      LOGGER.error("Error reading config file", e);
-      System.exit(1);
+      exitWithError("Error reading config file", e);
       return;
     }
 
-    Database database;
+    SqliteDatabase database;
     try {
       database = new SqliteDatabase(config.database());
     } catch (SQLException e) {
-      LOGGER.error("Error initializing database", e);
-      System.exit(1);
+      exitWithError("Error initializing database", e);
+      return;
+    }
+
+    try {
+      database.migrateSchema();
+    } catch (SQLException e) {
+      exitWithError("Error migrating database", e);
       return;
     }
 
     Dotenv dotenv = Dotenv.load();
     JDA jda = JDABuilder.createLight(dotenv.get("BOT_TOKEN"), Collections.emptyList())
-        .enableIntents(GatewayIntent.MESSAGE_CONTENT)
+        .enableIntents(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT)
         .setActivity(Activity.playing("with time"))
         .enableCache(CacheFlag.FORUM_TAGS)
+        // JDA's own hook would cancel outstanding requests while ours is still waiting for them.
+        .setEnableShutdownHook(false)
         .build();
 
     LOGGER.info("Connecting to discord...");
     jda.awaitReady();
-    LOGGER.info("Connected to discord");
+    // Measured from when the JVM started, so it can be compared with and without the CDS archive.
+    LOGGER.info("Connected to discord {} ms after starting", Unbox.box(ManagementFactory.getRuntimeMXBean().getUptime()));
 
-    Scheduler<WithId<Alarm>> alarmsScheduler = new Scheduler<>(jda, Duration.ZERO, database::getNextAlarmTime, database::getEventsBefore);
-    Scheduler<WithId<ScheduledDM>> dmScheduler = new Scheduler<>(jda, config.minTimeBetweenDMs(), database::getNextDMTime, database::getDMsScheduledBefore);
-    Bot bot = new Bot(jda, config, database, alarmsScheduler, dmScheduler);
+    TimerService timerService = new TimerService(jda);
+    // Alarms go first. They're cheap to raise, and the DMs for them can't be sent until they have been.
+    TimerService.Lane<WithId<Alarm>> alarmLane = timerService.addLane("alarm", 1, Duration.ZERO, database::getNextAlarmTime, database::getEventsBefore);
+    TimerService.Lane<WithId<ScheduledDM>> dmLane = timerService.addLane("dm", 0, config.minTimeBetweenDMs(), database::getNextDMTime, database::getDMsScheduledBefore);
+    // Fetching starter messages ahead of their alarms can wait for the DMs, and is spaced out so a lot
+    // of them coming due at once doesn't eat into the rate limit.
+    DescriptionPrefetcher descriptionPrefetcher = new DescriptionPrefetcher();
+    TimerService.Lane<Long> prefetchLane = timerService.addLane("prefetch", -1, PREFETCH_SPACING, descriptionPrefetcher::getNextPrefetchTime, descriptionPrefetcher::getPrefetchesBefore);
+    Bot bot = new Bot(jda, config, database, alarmLane, dmLane, descriptionPrefetcher, prefetchLane);
+    Housekeeping housekeeping = new Housekeeping(database, bot, dmLane::isBusy);
+    TimerService.Lane<ZonedDateTime> housekeepingLane = timerService.addLane("housekeeping", -2, Duration.ZERO, housekeeping::getNextRunTime, housekeeping::getRunsBefore);
+    housekeepingLane.setOnEvent(housekeeping::run);
 
     jda.addEventListener(bot);
+    timerService.start();
+
+    ConfigWatcher configWatcher = new ConfigWatcher(configFile, bot::reloadConfig);
+    configWatcher.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      LOGGER.info("Shutting down...");
+      try {
+        // Stop taking on new work before waiting for the work we've already started.
+        configWatcher.stop();
+        jda.removeEventListener(bot);
+        timerService.drain(SHUTDOWN_TIMEOUT);
+        if (!bot.drain(SHUTDOWN_TIMEOUT)) {
+          LOGGER.warn("Not everything finished before shutting down. Unfinished work has been re-queued");
+        }
+        jda.shutdown();
+        if (!awaitShutdown(jda, SHUTDOWN_TIMEOUT)) {
+          jda.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        LOGGER.error("Interrupted while shutting down", e);
+      }
+      try {
+        database.close();
+      } catch (SQLException e) {
+        LOGGER.error("Error closing database", e);
+      }
+      LOGGER.info("Shut down");
+      LogManager.shutdown();
+    }));
+  }
+
+  private static void exitWithError(String message, Exception e) {
+    LOGGER.error(message, e);
+    // The loggers are asynchronous and our shutdown hook isn't registered yet, so nothing else would
+    // flush them before the JVM exits.
+    LogManager.shutdown();
+    System.exit(1);
+  }
+
+  private static boolean awaitShutdown(JDA jda, Duration timeout) throws InterruptedException {
+    Instant deadline = Instant.now().plus(timeout);
+    while (jda.getStatus() != JDA.Status.SHUTDOWN) {
+      if (!Instant.now().isBefore(deadline)) {
+        return false;
+      }
+      Thread.sleep(100);
+    }
+    return true;
   }
 }
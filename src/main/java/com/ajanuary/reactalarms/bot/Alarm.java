@@ -2,5 +2,5 @@ package com.ajanuary.reactalarms.bot;
 
 import java.time.ZonedDateTime;
 
-public record Alarm(String forumId, String threadId, ZonedDateTime time) {
+public record Alarm(long forumId, long threadId, ZonedDateTime time) {
 }
\ No newline at end of file
@@ -2,58 +2,246 @@ package com.ajanuary.reactalarms.bot;
 
 import com.ajanuary.reactalarms.db.Database;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalTime;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.entities.MessageReaction;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
+import net.dv8tion.jda.api.entities.channel.concrete.ForumChannel;
 import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
 import net.dv8tion.jda.api.entities.channel.forums.ForumTag;
 import net.dv8tion.jda.api.events.channel.ChannelCreateEvent;
 import net.dv8tion.jda.api.events.channel.ChannelDeleteEvent;
 import net.dv8tion.jda.api.events.channel.GenericChannelEvent;
+import net.dv8tion.jda.api.events.channel.update.ChannelUpdateAppliedTagsEvent;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateNameEvent;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.MessageUpdateEvent;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.requests.ErrorResponse;
 import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 
 public class Bot extends ListenerAdapter {
 
   private static final Logger LOGGER = LogManager.getLogger();
-  private static final Pattern TIME_PATTERN = Pattern.compile("^\\W*(\\d{1,2})(?:[:. ](\\d{2}))?(?:\\s*(am|a\\.m\\.?|pm|p\\.m\\.?))?(?:\\W+|$)", Pattern.CASE_INSENSITIVE);
+  private static final Duration INITIAL_RETRY_BACKOFF = Duration.ofSeconds(2);
+  private static final Duration MAX_RETRY_BACKOFF = Duration.ofMinutes(1);
 
   private final JDA jda;
-  private final Config config;
+  // Can be replaced when the config file is reloaded.
+  private volatile Config config;
   private final Database database;
-  private final Scheduler<WithId<Alarm>> alarmsScheduler;
-  private final Scheduler<WithId<ScheduledDM>> dmScheduler;
-
-  public Bot(JDA jda, Config config, Database database, Scheduler<WithId<Alarm>> alarmsScheduler, Scheduler<WithId<ScheduledDM>> dmScheduler) {
+  private final TimerService.Lane<WithId<Alarm>> alarmLane;
+  private final TimerService.Lane<WithId<ScheduledDM>> dmLane;
+  private final DescriptionPrefetcher descriptionPrefetcher;
+  private final TimerService.Lane<Long> prefetchLane;
+
+  // Alarms and DMs are deleted from the database before we start talking to Discord about them, so
+  // we keep track of them here until Discord has finished with them. That way, if we get shut down
+  // part way through, we can put them back in the database rather than losing them.
+  private final Map<Integer, WithId<Alarm>> inFlightAlarms = new ConcurrentHashMap<>();
+  private final Map<Integer, WithId<ScheduledDM>> inFlightDMs = new ConcurrentHashMap<>();
+  private final ReentrantLock inFlightLock = new ReentrantLock();
+  private final Condition inFlightFinished = inFlightLock.newCondition();
+  // Config reloads happen on the watcher's thread. This stops one swapping the config, or
+  // re-reconciling a thread, part way through JDA's event thread updating the same thread.
+  private final ReentrantLock configLock = new ReentrantLock();
+  private final RenderedMessageCache renderedMessages = new RenderedMessageCache();
+  private final ThreadMetadataCache threadMetadata = new ThreadMetadataCache();
+  private final Map<Set<TimeFormat>, TimeParser> timeParsers = new ConcurrentHashMap<>();
+  private final ReactionQueue reactionQueue;
+
+  public Bot(JDA jda, Config config, Database database, TimerService.Lane<WithId<Alarm>> alarmLane, TimerService.Lane<WithId<ScheduledDM>> dmLane, DescriptionPrefetcher descriptionPrefetcher, TimerService.Lane<Long> prefetchLane) {
     this.jda = jda;
     this.config = config;
     this.database = database;
-    this.alarmsScheduler = alarmsScheduler;
-    this.dmScheduler = dmScheduler;
+    this.alarmLane = alarmLane;
+    this.dmLane = dmLane;
+    this.descriptionPrefetcher = descriptionPrefetcher;
+    this.prefetchLane = prefetchLane;
+    this.reactionQueue = new ReactionQueue(jda, config.emoji(), () -> dmLane.isBusy() || !inFlightDMs.isEmpty());
+    reactionQueue.start();
+
+    alarmLane.setOnEvent(this::handleOnAlarm);
+    dmLane.setOnEvent(this::handleOnScheduledDM);
+    prefetchLane.setOnEvent(this::handleOnPrefetch);
 
-    alarmsScheduler.setOnEvent(this::handleOnAlarm);
-    dmScheduler.setOnEvent(this::handleOnScheduledDM);
+    try {
+      int reset = database.resetInFlightDMs();
+      if (reset > 0) {
+        // We must have stopped without finding out whether these were sent.
+        LOGGER.warn("Re-queued {} DMs that were in flight when we last stopped", Unbox.box(reset));
+      }
+    } catch (SQLException e) {
+      LOGGER.error("Error re-queueing in flight DMs", e);
+    }
+
+    Map<Long, ThreadFingerprint> fingerprints;
+    try {
+      fingerprints = database.getThreadFingerprints();
+    } catch (SQLException e) {
+      LOGGER.error("Error getting thread fingerprints. Reconciling everything", e);
+      fingerprints = Map.of();
+    }
 
     LOGGER.info("Reconciling...");
+    int skipped = 0;
     for (Config.Channel channelConfig : config.channels().values()) {
-      List<ThreadChannel> threads = jda.getForumChannelById(channelConfig.id()).getThreadChannels();
-      for (int i = 0; i < threads.size(); i++) {
-        LOGGER.info("Reconciling " + (i + 1) + "/" + threads.size() + " on " + channelConfig.name());
-        handleThreadCreateOrUpdate(threads.get(i));
+      skipped += reconcileChannel(channelConfig, fingerprints);
+    }
+    LOGGER.info("Reconciled. Skipped {} threads that hadn't changed", Unbox.box(skipped));
+  }
+
+  /**
+   * @return the number of threads skipped because their fingerprint hadn't changed
+   */
+  private int reconcileChannel(Config.Channel channelConfig, Map<Long, ThreadFingerprint> fingerprints) {
+    ForumChannel forum = jda.getForumChannelById(channelConfig.id());
+    if (forum == null) {
+      LOGGER.error("Could not find forum channel {} for {}", Unbox.box(channelConfig.id()), channelConfig.name());
+      return 0;
+    }
+    int skipped = 0;
+    List<ThreadChannel> threads = forum.getThreadChannels();
+    for (int i = 0; i < threads.size(); i++) {
+      ThreadChannel thread = threads.get(i);
+      if (isUnchanged(thread, fingerprints.get(thread.getIdLong()))) {
+        fingerprints.get(thread.getIdLong()).alarmTime().ifPresent(alarmTime -> trackThreadMetadata(thread, alarmTime));
+        skipped++;
+        continue;
+      }
+      LOGGER.info("Reconciling {}/{} on {}", Unbox.box(i + 1), Unbox.box(threads.size()), channelConfig.name());
+      handleThreadCreateOrUpdate(thread);
+    }
+    return skipped;
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  /**
+   * @return the ids of the threads in every configured forum, or empty if any of the forums can't be
+   *     found
+   */
+  Optional<Set<Long>> getThreadIdsInConfiguredForums() {
+    Set<Long> threadIds = new HashSet<>();
+    for (Config.Channel channel : config.channels().values()) {
+      ForumChannel forum = jda.getForumChannelById(channel.id());
+      if (forum == null) {
+        return Optional.empty();
+      }
+      for (ThreadChannel thread : forum.getThreadChannels()) {
+        threadIds.add(thread.getIdLong());
       }
     }
+    return Optional.of(threadIds);
+  }
+
+  /**
+   * For when a DM that was still pending has been removed without going through the DM lane.
+   */
+  void releaseRenderedMessage(long threadId) {
+    renderedMessages.release(threadId);
+  }
+
+  /**
+   * Switches to a new config, re-reconciling only the channels it affects. Alarms in other
+   * channels, and DMs that have already been scheduled, are left alone.
+   */
+  public void reloadConfig(Config newConfig) {
+    try {
+      configLock.lock();
+      reloadConfigLocked(newConfig);
+    } finally {
+      configLock.unlock();
+    }
+  }
+
+  private void reloadConfigLocked(Config newConfig) {
+    Config oldConfig = config;
+    if (!newConfig.database().equals(oldConfig.database()) || !newConfig.emoji().equals(oldConfig.emoji())) {
+      // Existing alarms are in the old database and reacted to with the old emoji.
+      LOGGER.warn("Changing the database or emoji needs a restart. Keeping the old values");
+      newConfig = new Config(oldConfig.database(), newConfig.zoneId(), oldConfig.emoji(), newConfig.timeBeforeToNotify(), newConfig.maxTimeAfterToNotify(), newConfig.minTimeBetweenDMs(), newConfig.channels());
+    }
+    config = newConfig;
+    dmLane.setMinTimeBetweenEvents(newConfig.minTimeBetweenDMs());
+
+    // These go into every alarm time.
+    boolean everythingChanged = !newConfig.zoneId().equals(oldConfig.zoneId()) || !newConfig.timeBeforeToNotify().equals(oldConfig.timeBeforeToNotify());
+
+    List<Config.Channel> changed = new ArrayList<>();
+    for (Config.Channel channel : newConfig.channels().values()) {
+      Config.Channel oldChannel = oldConfig.channels().get(channel.id());
+      if (everythingChanged || oldChannel == null || !channel.date().equals(oldChannel.date()) || !channel.timeFormats().equals(oldChannel.timeFormats())) {
+        changed.add(channel);
+      }
+    }
+    for (Config.Channel oldChannel : oldConfig.channels().values()) {
+      if (!newConfig.channels().containsKey(oldChannel.id())) {
+        // Reconciling against the new config removes the alarms from the channel's threads.
+        changed.add(oldChannel);
+      }
+    }
+
+    for (Config.Channel channel : changed) {
+      LOGGER.info("Re-reconciling {}", channel.name());
+      reconcileChannel(channel, Map.of());
+    }
+    LOGGER.info("Reloaded config. Re-reconciled {} of {} channels", Unbox.box(changed.size()), Unbox.box(newConfig.channels().size()));
+  }
+
+  private boolean isUnchanged(ThreadChannel thread, ThreadFingerprint previous) {
+    if (previous == null || !previous.fingerprint().equals(fingerprint(thread))) {
+      return false;
+    }
+    // If the alarm was due so long ago that it can't be sent any more, the thread still needs tidying
+    // up even though it hasn't changed.
+    return previous.alarmTime().isEmpty() || previous.alarmTime().get().plus(config.maxTimeAfterToNotify()).isAfter(Instant.now());
+  }
+
+  private String fingerprint(ThreadChannel thread) {
+    // Everything that goes into working out when (or whether) the thread's alarm goes off.
+    long forumId = thread.getParentChannel().getIdLong();
+    Config.Channel channel = config.channels().get(forumId);
+    return String.join("\n",
+        Long.toString(forumId),
+        thread.getName(),
+        channel == null ? "" : channel.date().toString(),
+        channel == null ? "" : channel.timeFormats().toString(),
+        config.zoneId().getId(),
+        config.timeBeforeToNotify().toString());
+  }
+
+  private void saveFingerprint(ThreadChannel thread, Optional<ZonedDateTime> alarmTime) {
+    try {
+      database.saveThreadFingerprint(new ThreadFingerprint(thread.getIdLong(), fingerprint(thread), alarmTime.map(ZonedDateTime::toInstant)));
+    } catch (SQLException e) {
+      // Not the end of the world. We'll just reconcile the thread again next time we start.
+      LOGGER.error("Error saving fingerprint for thread {}", thread.getId(), e);
+    }
   }
 
   @Override
@@ -66,67 +254,118 @@ public class Bot extends ListenerAdapter {
     handleChannelCreateOrUpdate(event);
   }
 
+  @Override
+  public void onChannelUpdateAppliedTags(ChannelUpdateAppliedTagsEvent event) {
+    ThreadChannel thread = event.getChannel().asThreadChannel();
+    if (threadMetadata.get(thread.getIdLong()).isPresent()) {
+      threadMetadata.updateThread(thread.getIdLong(), thread.getName(), thread.getJumpUrl(), formatTags(thread));
+    }
+  }
+
+  @Override
+  public void onMessageReceived(MessageReceivedEvent event) {
+    handleMessageCreateOrUpdate(event.getChannelType(), event.getChannel().getIdLong(), event.getMessageIdLong(), event.getMessage().getContentRaw());
+  }
+
+  @Override
+  public void onMessageUpdate(MessageUpdateEvent event) {
+    handleMessageCreateOrUpdate(event.getChannelType(), event.getChannel().getIdLong(), event.getMessageIdLong(), event.getMessage().getContentRaw());
+  }
+
+  private void handleMessageCreateOrUpdate(ChannelType channelType, long channelId, long messageId, String content) {
+    if (channelType != ChannelType.GUILD_PUBLIC_THREAD || channelId != messageId) {
+      // Not the starter message of a thread. Ignore.
+      return;
+    }
+    threadMetadata.updateDescription(channelId, content);
+  }
+
   private void handleChannelCreateOrUpdate(GenericChannelEvent event) {
     if (event.getChannel().getType() != ChannelType.GUILD_PUBLIC_THREAD) {
       // Not a thread. Ignore.
       return;
     }
     ThreadChannel thread = event.getChannel().asThreadChannel();
-    handleThreadCreateOrUpdate(thread);
+    try {
+      configLock.lock();
+      handleThreadCreateOrUpdate(thread);
+    } finally {
+      configLock.unlock();
+    }
 }
 
 private void handleThreadCreateOrUpdate(ThreadChannel thread) {
-    LOGGER.info("Updating alarm for " + thread.getId());
+    LOGGER.info("Updating alarm for {}", thread.getId());
 
-    Optional<Integer> existing;
+    Optional<WithId<Alarm>> existing;
     try {
-      existing = database.getAlarmIdForThread(thread.getId());
+      existing = database.getAlarmForThread(thread.getIdLong());
     } catch (SQLException e) {
-      LOGGER.error("Error getting alarm for thread " + thread.getId(), e);
+      LOGGER.error("Error getting alarm for thread {}", thread.getId(), e);
       return;
     }
 
-    String forumId = thread.getParentChannel().getId();
+    long forumId = thread.getParentChannel().getIdLong();
     Config.Channel channel = config.channels().get(forumId);
     if (channel == null) {
       // Nothing configured for this channel
-      existing.ifPresent(integer -> deleteAlarm(integer, Optional.of(thread)));
+      existing.ifPresent(alarmWithId -> deleteAlarm(alarmWithId.id(), Optional.of(thread)));
+      saveFingerprint(thread, Optional.empty());
       return;
     }
 
-    Optional<LocalTime> timeM = parseTime(thread.getName());
+    Optional<LocalTime> timeM = timeParsers.computeIfAbsent(channel.timeFormats(), TimeParser::new).parse(thread.getName());
     if (timeM.isEmpty()) {
-      LOGGER.warn("Could not parse time in '" + thread.getName() + "'. Ignoring thread.");
-      existing.ifPresent(integer -> deleteAlarm(integer, Optional.of(thread)));
+      LOGGER.warn("Could not parse time in '{}'. Ignoring thread.", thread.getName());
+      existing.ifPresent(alarmWithId -> deleteAlarm(alarmWithId.id(), Optional.of(thread)));
+      saveFingerprint(thread, Optional.empty());
       return;
     }
 
     LocalTime time = timeM.get();
     ZonedDateTime dateTime = ZonedDateTime.of(channel.date(), time, config.zoneId()).minus(config.timeBeforeToNotify());
+    if (existing.isPresent() && dateTime.isBefore(ZonedDateTime.now()) && dateTime.plus(config.maxTimeAfterToNotify()).isAfter(ZonedDateTime.now())) {
+      // The alarm was due while we weren't running, but it's not too late to send the DMs. Leave it
+      // for the timer service to pick up, at its new time if the title or config has moved it.
+      LOGGER.info("Alarm for {} is overdue. Leaving it to be triggered", thread.getId());
+      if (!existing.get().item().time().toInstant().equals(dateTime.toInstant())) {
+        try {
+          database.updateAlarm(new WithId<>(existing.get().id(), new Alarm(forumId, thread.getIdLong(), dateTime)));
+        } catch (SQLException e) {
+          LOGGER.error("Error updating alarm in database", e);
+          return;
+        }
+        alarmLane.notifyOfDbChange();
+      }
+      trackThreadMetadata(thread, dateTime.toInstant());
+      saveFingerprint(thread, Optional.of(dateTime));
+      return;
+    }
     if (dateTime.isBefore(ZonedDateTime.now())) {
       LOGGER.info("Alarm is in the past. Removing");
-      existing.ifPresent(integer -> deleteAlarm(integer, Optional.of(thread)));
+      existing.ifPresent(alarmWithId -> deleteAlarm(alarmWithId.id(), Optional.of(thread)));
+      saveFingerprint(thread, Optional.empty());
       return;
     }
 
     try {
       if (existing.isEmpty()) {
-        database.addAlarm(new Alarm(forumId, thread.getId(), dateTime));
+        database.addAlarm(new Alarm(forumId, thread.getIdLong(), dateTime));
       } else {
-        database.updateAlarm(new WithId<>(existing.get(), new Alarm(forumId, thread.getId(), dateTime)));
+        database.updateAlarm(new WithId<>(existing.get().id(), new Alarm(forumId, thread.getIdLong(), dateTime)));
       }
     } catch (SQLException e) {
       LOGGER.error("Error adding alarm to database", e);
       return;
     }
+    trackThreadMetadata(thread, dateTime.toInstant());
+    saveFingerprint(thread, Optional.of(dateTime));
+    // The alarm might now be due before the one the lane is waiting for.
+    alarmLane.notifyOfDbChange();
 
     if (existing.isEmpty()) {
-      thread.addReactionById(thread.getId(), config.emoji()).queue(success -> {
-        alarmsScheduler.notifyOfDbChange();
-        LOGGER.info("Added alarm at " + dateTime + " for " + thread.getId());
-      }, err -> {
-        LOGGER.error("Error adding emoji", err);
-      });
+      reactionQueue.addReaction(thread.getIdLong());
+      LOGGER.info("Added alarm at {} for {}", dateTime, thread.getId());
     }
   }
 
@@ -137,107 +376,326 @@ private void handleThreadCreateOrUpdate(ThreadChannel thread) {
       return;
     }
     ThreadChannel thread = event.getChannel().asThreadChannel();
+    try {
+      configLock.lock();
+      handleThreadDelete(thread);
+    } finally {
+      configLock.unlock();
+    }
+  }
 
-    LOGGER.info("Deleting alarm for " + thread.getId());
+  private void handleThreadDelete(ThreadChannel thread) {
+    LOGGER.info("Deleting alarm for {}", thread.getId());
+    threadMetadata.remove(thread.getIdLong());
+    try {
+      database.deleteThreadFingerprint(thread.getIdLong());
+    } catch (SQLException e) {
+      LOGGER.error("Error deleting fingerprint for thread {}", thread.getId(), e);
+    }
 
-    Optional<Integer> existing;
+    Optional<WithId<Alarm>> existing;
     try {
-      existing = database.getAlarmIdForThread(thread.getId());
+      existing = database.getAlarmForThread(thread.getIdLong());
     } catch (SQLException e) {
-      LOGGER.error("Error getting alarm for thread " + thread.getId(), e);
+      LOGGER.error("Error getting alarm for thread {}", thread.getId(), e);
       return;
     }
 
     if (existing.isEmpty()) {
-      LOGGER.warn("No alarm for " + thread.getId() + ". Ignoring");
+      LOGGER.warn("No alarm for {}. Ignoring", thread.getId());
       return;
     } else {
-      deleteAlarm(existing.get(), Optional.empty());
+      deleteAlarm(existing.get().id(), Optional.empty());
     }
   }
 
   private void handleOnAlarm(WithId<Alarm> alarmWithId) {
     deleteAlarm(alarmWithId.id(), Optional.empty());
 
-    Optional<ThreadChannel> threadM = jda.getForumChannelById(alarmWithId.item().forumId()).getThreadChannels().stream().filter(t -> t.getId().equals(alarmWithId.item().threadId())).findFirst();
+    Optional<ThreadChannel> threadM = Optional.ofNullable(jda.getThreadChannelById(alarmWithId.item().threadId()));
     if (threadM.isEmpty()) {
-      LOGGER.warn("Could not find thread " + alarmWithId.item().threadId() + ". Ignoring alarm.");
+      LOGGER.warn("Could not find thread {}. Ignoring alarm.", Unbox.box(alarmWithId.item().threadId()));
       return;
     }
     ThreadChannel thread = threadM.get();
-    thread.retrieveMessageById(thread.getId()).queue(message -> {
-      MessageReaction reaction = message.getReaction(config.emoji());
-      if (reaction == null) {
-        LOGGER.warn("Couldn't get the reaction on the message. This is usually because the time was set too soon.");
+    inFlightAlarms.put(alarmWithId.id(), alarmWithId);
+    Optional<ThreadMetadataCache.ThreadMetadata> metadataM = threadMetadata.get(thread.getIdLong()).filter(metadata -> metadata.description().isPresent());
+    threadMetadata.remove(thread.getIdLong());
+    if (metadataM.isPresent()) {
+      scheduleDMsForAlarm(alarmWithId, thread, metadataM.get());
+      return;
+    }
+
+    // We didn't manage to get hold of the starter message before now, so we'll have to fetch it.
+    LOGGER.warn("No cached details for thread {}. Fetching them", thread.getId());
+    thread.retrieveMessageById(thread.getIdLong()).queue(message -> {
+      scheduleDMsForAlarm(alarmWithId, thread, new ThreadMetadataCache.ThreadMetadata(thread.getName(), thread.getJumpUrl(), formatTags(thread), Optional.of(message.getContentRaw())));
+    }, err -> {
+      if (err instanceof CancellationException) {
+        requeueAlarm(alarmWithId);
         return;
       }
+      LOGGER.error("Error getting message for thread {}", thread.getId(), err);
+      finishInFlight(inFlightAlarms, alarmWithId.id());
+    });
+  }
+
+  private void scheduleDMsForAlarm(WithId<Alarm> alarmWithId, ThreadChannel thread, ThreadMetadataCache.ThreadMetadata metadata) {
+    thread.retrieveReactionUsersById(thread.getIdLong(), config.emoji()).queue(users -> {
+      reactionQueue.clearReactions(thread.getIdLong());
+
+      // Don't need to wait for clear reactions to complete to start working on adding the events.
+      List<User> recipients = users.stream().filter(user -> !user.isBot()).toList();
+      if (users.isEmpty()) {
+        LOGGER.warn("Couldn't get the reaction on the message. This is usually because the time was set too soon.");
+      }
+      String description = metadata.description().orElse("");
+      // Every DM for the alarm is the same, so render it once up front. This has to be in the cache
+      // before the DMs are added to the database, otherwise the DM lane could get to them first.
+      renderedMessages.put(alarmWithId.item().threadId(), renderDM(metadata.title(), metadata.url(), description, metadata.tags()), recipients.size());
+      for (User user : recipients) {
+        ScheduledDM scheduledDM = new ScheduledDM(alarmWithId.item().forumId(), alarmWithId.item().threadId(), user.getIdLong(), alarmWithId.item().time(), metadata.title(), metadata.url(), description, metadata.tags());
+        try {
+          database.addScheduledDM(scheduledDM);
+        } catch (SQLException e) {
+          LOGGER.error("Error adding event for alarm {} for user {}", Unbox.box(alarmWithId.id()), user.getId(), e);
+          renderedMessages.release(alarmWithId.item().threadId());
+        }
+      }
 
-      Optional<String> tags;
-      if (!thread.getAppliedTags().isEmpty()) {
-        tags = Optional.of(thread.getAppliedTags().stream().map(this::formatTag).collect(Collectors.joining(", ")));
-      } else {
-        tags = Optional.empty();
+      finishInFlight(inFlightAlarms, alarmWithId.id());
+      dmLane.notifyOfDbChange();
+    }, error -> {
+      if (error instanceof CancellationException) {
+        requeueAlarm(alarmWithId);
+        return;
       }
+      LOGGER.error("Error getting reactions for alarm {}", Unbox.box(alarmWithId.id()), error);
+      finishInFlight(inFlightAlarms, alarmWithId.id());
+    });
+  }
 
-      reaction.retrieveUsers().queue(users -> {
-        message.clearReactions(config.emoji()).queue(success -> { }, err -> {
-          LOGGER.error("Error clearing reactions for thread " + alarmWithId.item().threadId(), err);
-        });
-
-        // Don't need to wait for clear reactions to complete to start working on adding the events.
-        for (User user : users) {
-          if (user.isBot()) {
-            continue;
-          }
-          ScheduledDM scheduledDM = new ScheduledDM(alarmWithId.item().forumId(), alarmWithId.item().threadId(), user.getId(), alarmWithId.item().time(), thread.getName(), thread.getJumpUrl(), message.getContentRaw(), tags);
-          try {
-            database.addScheduledDM(scheduledDM);
-          } catch (SQLException e) {
-            LOGGER.error("Error adding event for alarm " + alarmWithId.id() + " for user " + user.getId(), e);
-          }
-        }
+  private void trackThreadMetadata(ThreadChannel thread, Instant alarmTime) {
+    boolean hadDescription = threadMetadata.get(thread.getIdLong()).flatMap(ThreadMetadataCache.ThreadMetadata::description).isPresent();
+    threadMetadata.updateThread(thread.getIdLong(), thread.getName(), thread.getJumpUrl(), formatTags(thread));
+    if (!hadDescription) {
+      // The starter message only changes through message events, so this only needs to be fetched the
+      // first time we see the thread. Leave it until shortly before the alarm, so that starting up
+      // doesn't fetch every thread at once.
+      descriptionPrefetcher.schedule(thread.getIdLong(), alarmTime);
+      prefetchLane.notifyOfDbChange();
+    }
+  }
 
-        dmScheduler.notifyOfDbChange();
-      }, error -> {
-        LOGGER.error("Error getting reactions for alarm " + alarmWithId.id(), error);
-      });
+  private void handleOnPrefetch(long threadId) {
+    if (threadMetadata.get(threadId).filter(metadata -> metadata.description().isEmpty()).isEmpty()) {
+      // The alarm has gone, or the starter message came in through a message event.
+      return;
+    }
+    ThreadChannel thread = jda.getThreadChannelById(threadId);
+    if (thread == null) {
+      return;
+    }
+    thread.retrieveMessageById(threadId).queue(message -> {
+      threadMetadata.updateDescription(threadId, message.getContentRaw());
     }, err -> {
-      LOGGER.error("Error getting message for thread " + thread.getId(), err);
+      LOGGER.error("Error getting starter message for thread {}", thread.getId(), err);
     });
   }
 
   private void handleOnScheduledDM(WithId<ScheduledDM> dmWithId) {
-    deleteScheduledDM(dmWithId.id());
-
     if (dmWithId.item().time().plus(config.maxTimeAfterToNotify()).compareTo(ZonedDateTime.now()) <= 0) {
-      LOGGER.warn("DM " + dmWithId.id() + " is being processed too late after it's scheduled time of " + dmWithId.item().time() + ". Ignoring");
+      LOGGER.warn("DM {} is being processed too late after it's scheduled time of {}. Ignoring", Unbox.box(dmWithId.id()), dmWithId.item().time());
+      setScheduledDMStatus(dmWithId, DMStatus.FAILED);
       return;
     }
 
+    setScheduledDMStatus(dmWithId, DMStatus.IN_FLIGHT);
+    inFlightDMs.put(dmWithId.id(), dmWithId);
     jda.retrieveUserById(dmWithId.item().userId()).queue(user -> {
       user.openPrivateChannel().queue(privateChannel -> {
-        EmbedBuilder embedBuilder = new EmbedBuilder()
-            .setTitle(dmWithId.item().title(), dmWithId.item().url())
-            .addField("Description", dmWithId.item().description(), false)
-            .setFooter("For all time, always.");
-        dmWithId.item().tags().ifPresent(tags -> embedBuilder.addField("Tags", tags, false));
-
-        privateChannel.sendMessage(new MessageCreateBuilder()
-                .addContent("Hey y'all. You asked me to remind you about this event:")
-                .addEmbeds(embedBuilder.build()).build())
+        ScheduledDM dm = dmWithId.item();
+        MessageCreateData message = renderedMessages.get(dm.threadId(), () -> renderDM(dm.title(), dm.url(), dm.description(), dm.tags()));
+        privateChannel.sendMessage(message)
             .queue(
-                success -> { },
+                success -> {
+                  setScheduledDMStatus(dmWithId, DMStatus.SENT);
+                  finishInFlight(inFlightDMs, dmWithId.id());
+                },
                 error -> {
-                  LOGGER.error("Error sending message to user " + user.getName() + " when handling DM " + dmWithId.id(), error);
+                  LOGGER.error("Error sending message to user {} when handling DM {}", user.getName(), Unbox.box(dmWithId.id()), error);
+                  handleFailedDM(dmWithId, error);
                 });
       }, error -> {
-        LOGGER.error("Error getting user " + user.getName() + " when handling DM " + dmWithId.id(), error);
+        LOGGER.error("Error getting user {} when handling DM {}", user.getName(), Unbox.box(dmWithId.id()), error);
+        handleFailedDM(dmWithId, error);
       });
     }, err -> {
-      LOGGER.error("Error getting user " + dmWithId.item().userId() + " for dm " + dmWithId.id(), err);
+      LOGGER.error("Error getting user {} for dm {}", Unbox.box(dmWithId.item().userId()), Unbox.box(dmWithId.id()), err);
+      handleFailedDM(dmWithId, err);
     });
   }
 
+  private void handleFailedDM(WithId<ScheduledDM> dmWithId, Throwable error) {
+    if (error instanceof CancellationException) {
+      // We're shutting down. It wasn't the DM's fault, so it shouldn't count as an attempt.
+      requeueDM(dmWithId);
+      return;
+    }
+    try {
+      if (isPermanentFailure(error)) {
+        LOGGER.warn("DM {} can never be sent. Giving up", Unbox.box(dmWithId.id()));
+        setScheduledDMStatus(dmWithId, DMStatus.FAILED);
+        return;
+      }
+
+      int attempts;
+      try {
+        attempts = database.recordFailedDMAttempt(dmWithId.id());
+      } catch (SQLException e) {
+        LOGGER.error("Error recording failed attempt for DM {}", Unbox.box(dmWithId.id()), e);
+        setScheduledDMStatus(dmWithId, DMStatus.FAILED);
+        return;
+      }
+
+      // Back off exponentially so a struggling Discord isn't hammered, but there's no point retrying
+      // once it's too late for the DM to be useful.
+      Duration backoff = INITIAL_RETRY_BACKOFF.multipliedBy(1L << Math.min(attempts - 1, 16));
+      if (backoff.compareTo(MAX_RETRY_BACKOFF) > 0) {
+        backoff = MAX_RETRY_BACKOFF;
+      }
+      ZonedDateTime nextAttemptTime = ZonedDateTime.now().plus(backoff);
+      if (!nextAttemptTime.isBefore(dmWithId.item().time().plus(config.maxTimeAfterToNotify()))) {
+        LOGGER.warn("DM {} failed {} times and it would be too late to try again. Giving up", Unbox.box(dmWithId.id()), Unbox.box(attempts));
+        setScheduledDMStatus(dmWithId, DMStatus.FAILED);
+        return;
+      }
+
+      try {
+        database.rescheduleDM(dmWithId.id(), nextAttemptTime);
+      } catch (SQLException e) {
+        LOGGER.error("Error rescheduling DM {}", Unbox.box(dmWithId.id()), e);
+        // Otherwise it would be stuck in flight until the next restart.
+        setScheduledDMStatus(dmWithId, DMStatus.FAILED);
+        return;
+      }
+      LOGGER.info("Retrying DM {} at {} (attempt {})", Unbox.box(dmWithId.id()), nextAttemptTime, Unbox.box(attempts + 1));
+      DMEventLog.record(dmWithId, "retrying");
+      dmLane.notifyOfDbChange();
+    } finally {
+      finishInFlight(inFlightDMs, dmWithId.id());
+    }
+  }
+
+  private boolean isPermanentFailure(Throwable error) {
+    if (error instanceof ErrorResponseException errorResponseException) {
+      ErrorResponse response = errorResponseException.getErrorResponse();
+      return response == ErrorResponse.CANNOT_SEND_TO_USER || response == ErrorResponse.UNKNOWN_USER;
+    }
+    return false;
+  }
+
+  /**
+   * @return false if it had already been finished, for example because it was re-queued
+   */
+  private boolean finishInFlight(Map<Integer, ?> inFlight, int id) {
+    try {
+      inFlightLock.lock();
+      boolean removed = inFlight.remove(id) != null;
+      inFlightFinished.signalAll();
+      return removed;
+    } finally {
+      inFlightLock.unlock();
+    }
+  }
+
+  /**
+   * Puts an alarm that didn't finish back in the database, unless that has already been done.
+   */
+  private void requeueAlarm(WithId<Alarm> alarmWithId) {
+    if (!finishInFlight(inFlightAlarms, alarmWithId.id())) {
+      return;
+    }
+    LOGGER.warn("Re-queueing alarm for thread {}", Unbox.box(alarmWithId.item().threadId()));
+    try {
+      database.addAlarm(alarmWithId.item());
+    } catch (SQLException e) {
+      LOGGER.error("Error re-queueing alarm {}", Unbox.box(alarmWithId.id()), e);
+    }
+  }
+
+  /**
+   * Puts a DM that didn't finish back in the queue, unless that has already been done.
+   */
+  private void requeueDM(WithId<ScheduledDM> dmWithId) {
+    if (!finishInFlight(inFlightDMs, dmWithId.id())) {
+      return;
+    }
+    LOGGER.warn("Re-queueing DM {}", Unbox.box(dmWithId.id()));
+    setScheduledDMStatus(dmWithId, DMStatus.PENDING);
+  }
+
+  /**
+   * Waits for any alarms and DMs that are part way through being handled to finish. Anything that
+   * hasn't finished by the timeout is put back in the database so it is picked up on the next start.
+   * The timer service should be drained before calling this so no new work is started.
+   *
+   * @return true if everything finished within the timeout
+   */
+  public boolean drain(Duration timeout) throws InterruptedException {
+    Instant deadline = Instant.now().plus(timeout);
+    try {
+      inFlightLock.lock();
+      while (!inFlightAlarms.isEmpty() || !inFlightDMs.isEmpty()) {
+        long millisLeft = ChronoUnit.MILLIS.between(Instant.now(), deadline);
+        if (millisLeft <= 0) {
+          break;
+        }
+        LOGGER.info("Waiting for {} alarms and {} DMs to finish", Unbox.box(inFlightAlarms.size()), Unbox.box(inFlightDMs.size()));
+        inFlightFinished.await(millisLeft, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      inFlightLock.unlock();
+    }
+
+    // The alarms above queue up reaction changes, so this has to come after them.
+    boolean reactionsDrained = reactionQueue.drain(Duration.ofMillis(Math.max(0, ChronoUnit.MILLIS.between(Instant.now(), deadline))));
+
+    if (inFlightAlarms.isEmpty() && inFlightDMs.isEmpty()) {
+      return reactionsDrained;
+    }
+
+    // There is a chance that Discord completes some of these after we've re-queued them, in which case
+    // the user might get a duplicate. That's better than them not getting one at all.
+    for (WithId<Alarm> alarmWithId : new ArrayList<>(inFlightAlarms.values())) {
+      requeueAlarm(alarmWithId);
+    }
+    for (WithId<ScheduledDM> dmWithId : new ArrayList<>(inFlightDMs.values())) {
+      requeueDM(dmWithId);
+    }
+    return false;
+  }
+
+  private MessageCreateData renderDM(String title, String url, String description, Optional<String> tags) {
+    EmbedBuilder embedBuilder = new EmbedBuilder()
+        .setTitle(title, url)
+        .addField("Description", description, false)
+        .setFooter("For all time, always.");
+    tags.ifPresent(t -> embedBuilder.addField("Tags", t, false));
+
+    return new MessageCreateBuilder()
+        .addContent("Hey y'all. You asked me to remind you about this event:")
+        .addEmbeds(embedBuilder.build())
+        .build();
+  }
+
+  private Optional<String> formatTags(ThreadChannel thread) {
+    if (thread.getAppliedTags().isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(thread.getAppliedTags().stream().map(this::formatTag).collect(Collectors.joining(", ")));
+  }
+
   private String formatTag(ForumTag tag) {
     if (tag.getEmoji() != null) {
       return tag.getEmoji().getFormatted() + " " + tag.getName();
@@ -250,46 +708,24 @@ private void handleThreadCreateOrUpdate(ThreadChannel thread) {
     try {
       database.deleteAlarm(alarmId);
     } catch (SQLException e) {
-      LOGGER.error("Error deleting alarm " + alarmId, e);
+      LOGGER.error("Error deleting alarm {}", Unbox.box(alarmId), e);
     }
-    alarmsScheduler.notifyOfDbChange();
 
     threadM.ifPresent(thread -> {
-      thread.retrieveMessageById(thread.getId()).queue(message -> {
-        message.clearReactions(config.emoji()).queue(success -> { }, err -> {
-          LOGGER.error("Error clearing reactions for thread " + thread.getId(), err);
-        });
-      });
+      threadMetadata.remove(thread.getIdLong());
+      reactionQueue.clearReactions(thread.getIdLong());
     });
   }
 
-  private void deleteScheduledDM(int dmId) {
+  private void setScheduledDMStatus(WithId<ScheduledDM> dmWithId, DMStatus status) {
     try {
-      database.deleteScheduledDM(dmId);
+      database.setScheduledDMStatus(dmWithId.id(), status);
     } catch (SQLException e) {
-      LOGGER.error("Error deleting scheduled DM " + dmId, e);
-    }
-    alarmsScheduler.notifyOfDbChange();
-  }
-
-  private Optional<LocalTime> parseTime(String name) {
-    Matcher matcher = TIME_PATTERN.matcher(name);
-    if (!matcher.find()) {
-      return Optional.empty();
+      LOGGER.error("Error setting status of scheduled DM {} to {}", Unbox.box(dmWithId.id()), status, e);
     }
-
-    int hour = Integer.parseInt(matcher.group(1));
-    String minsStr = matcher.group(2);
-    int mins = minsStr == null ? 0 : Integer.parseInt(minsStr);
-    String amPm = matcher.group(3);
-
-    if (minsStr == null && amPm == null) {
-      // If we have neither minutes nor an am/pm indicator, then it just starts with a number.
-      // These aren't really times.
-      return Optional.empty();
+    if (status == DMStatus.SENT || status == DMStatus.FAILED) {
+      renderedMessages.release(dmWithId.item().threadId());
+      DMEventLog.record(dmWithId, status.dbValue());
     }
-
-    int offset = (amPm != null && amPm.toLowerCase().startsWith("p")) ? 12 : 0;
-    return Optional.of(LocalTime.of(hour + offset, mins));
   }
-}
\ No newline at end of file
+}
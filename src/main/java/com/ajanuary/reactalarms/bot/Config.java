@@ -6,38 +6,61 @@ import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.temporal.TemporalAmount;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
 import org.tomlj.Toml;
+import org.tomlj.TomlArray;
 import org.tomlj.TomlParseResult;
 import org.tomlj.TomlTable;
 
-public record Config(String database, ZoneId zoneId, Emoji emoji, TemporalAmount timeBeforeToNotify, TemporalAmount maxTimeAfterToNotify, TemporalAmount minTimeBetweenDMs, Map<String, Channel> channels) {
-  public record Channel(String id, String name, LocalDate date) { }
+public record Config(String database, ZoneId zoneId, Emoji emoji, TemporalAmount timeBeforeToNotify, TemporalAmount maxTimeAfterToNotify, TemporalAmount minTimeBetweenDMs, Map<Long, Channel> channels) {
+  public record Channel(long id, String name, LocalDate date, Set<TimeFormat> timeFormats) { }
 
   public static Config parse(File configFile) throws IOException {
     TomlParseResult result = Toml.parse(configFile.toPath());
+    if (result.hasErrors()) {
+      throw new IOException("Invalid config file: " + result.errors().stream().map(Object::toString).collect(Collectors.joining(", ")));
+    }
     String database = result.getString("database", () -> "ttt.db");
     ZoneId zone = ZoneId.of(result.getString("zone", () -> "UTC"));
     Emoji emoji = Emoji.fromUnicode(result.getString("emoji", () -> "U+23F0"));
     long minsBeforeToNotify = result.getLong("mins_before_to_notify", () -> 5);
     long maxMinsAfterToNotify = result.getLong("max_mins_after_to_notify", () -> 5);
     long minMillisBetweenDMs = result.getLong("min_ms_between_dms", () -> 500);
+    Set<TimeFormat> timeFormats = parseTimeFormats(result.getArray("time_formats")).orElse(EnumSet.of(TimeFormat.TWENTY_FOUR_HOUR, TimeFormat.TWELVE_HOUR));
     TomlTable channelsTable = result.getTable("channel");
-    Map<String, Channel> channels;
-    if (channelsTable == null) {
-      channels = new HashMap<>();
-    } else {
-      channels = channelsTable.keySet().stream().map(key -> {
+    Map<Long, Channel> channels = new HashMap<>();
+    if (channelsTable != null) {
+      for (String key : channelsTable.keySet()) {
         TomlTable channelTable = channelsTable.getTable(key);
-        String id = channelTable.getString("id");
+        long id;
+        try {
+          id = Long.parseLong(channelTable.getString("id"));
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid config file: channel " + key + " has an invalid id", e);
+        }
         LocalDate date = channelTable.getLocalDate("date");
-        return new Channel(id, key, date);
-      }).collect(Collectors.toMap(Channel::id, Function.identity()));
+        Set<TimeFormat> channelTimeFormats = parseTimeFormats(channelTable.getArray("time_formats")).orElse(timeFormats);
+        channels.put(id, new Channel(id, key, date, channelTimeFormats));
+      }
     }
     return new Config(database, zone, emoji, Duration.ofMinutes(minsBeforeToNotify) , Duration.ofMinutes(maxMinsAfterToNotify), Duration.ofMillis(minMillisBetweenDMs), channels);
   }
+
+  private static Optional<Set<TimeFormat>> parseTimeFormats(TomlArray array) throws IOException {
+    if (array == null) {
+      return Optional.empty();
+    }
+    Set<TimeFormat> formats = EnumSet.noneOf(TimeFormat.class);
+    for (int i = 0; i < array.size(); i++) {
+      String name = array.getString(i);
+      formats.add(TimeFormat.fromConfigName(name).orElseThrow(() -> new IOException("Invalid config file: unknown time format '" + name + "'")));
+    }
+    return Optional.of(formats);
+  }
 }
@@ -0,0 +1,75 @@
+package com.ajanuary.reactalarms.bot;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ConfigWatcher {
+  private static final Logger LOGGER = LogManager.getLogger();
+  // Editors often save a file in several steps, so wait for it to settle before reading it.
+  private static final Duration SETTLE_TIME = Duration.ofSeconds(1);
+
+  private final Thread thread;
+
+  public ConfigWatcher(File configFile, Consumer<Config> onChange) {
+    Path path = configFile.toPath().toAbsolutePath();
+    thread = new Thread(() -> {
+      try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+        path.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        while (true) {
+          if (!waitForChange(watchService, path)) {
+            continue;
+          }
+          Thread.sleep(SETTLE_TIME.toMillis());
+          // Ignore anything that happened while we were waiting for it to settle.
+          WatchKey key;
+          while ((key = watchService.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+          }
+
+          Config config;
+          try {
+            config = Config.parse(configFile);
+          } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error reading config file. Keeping the old config", e);
+            continue;
+          }
+          LOGGER.info("Config file changed. Reloading");
+          onChange.accept(config);
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // Allow the thread to die
+      } catch (IOException e) {
+        LOGGER.error("Error watching config file. Changes won't be picked up until a restart", e);
+      }
+    });
+    thread.setDaemon(true);
+  }
+
+  private static boolean waitForChange(WatchService watchService, Path path) throws InterruptedException {
+    WatchKey key = watchService.take();
+    boolean changed = key.pollEvents().stream().anyMatch(event -> path.getFileName().equals(event.context()));
+    key.reset();
+    return changed;
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  public void stop() {
+    thread.interrupt();
+  }
+}
@@ -0,0 +1,21 @@
+package com.ajanuary.reactalarms.bot;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Writes a line with a fixed set of fields for everything that happens to a DM, separately from
+ * the application log, so that delivery can be checked and timed after an event.
+ */
+class DMEventLog {
+  private static final Logger LOGGER = LogManager.getLogger("dm-events");
+
+  private DMEventLog() { }
+
+  public static void record(WithId<ScheduledDM> dmWithId, String outcome) {
+    ScheduledDM dm = dmWithId.item();
+    long lateMillis = System.currentTimeMillis() - dm.time().toInstant().toEpochMilli();
+    LOGGER.info("dm={} thread={} user={} outcome={} late_ms={}", Unbox.box(dmWithId.id()), Unbox.box(dm.threadId()), Unbox.box(dm.userId()), outcome, Unbox.box(lateMillis));
+  }
+}
@@ -0,0 +1,12 @@
+package com.ajanuary.reactalarms.bot;
+
+public enum DMStatus {
+  PENDING,
+  IN_FLIGHT,
+  SENT,
+  FAILED;
+
+  public String dbValue() {
+    return name().toLowerCase();
+  }
+}
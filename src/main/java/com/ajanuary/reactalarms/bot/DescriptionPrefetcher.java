@@ -0,0 +1,78 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of when to fetch the starter message of each thread with an alarm, so that it's
+ * already in the ThreadMetadataCache when the alarm goes off. The fetches are raised by a low
+ * priority lane on the timer service, which spaces them out so they don't hold up alarms and DMs.
+ */
+public class DescriptionPrefetcher {
+  // How long before an alarm goes off to fetch its starter message. Any sooner and a restart with a
+  // lot of alarms would have to fetch them all at once; any later and the fetch might not be back in
+  // time.
+  private static final Duration WINDOW = Duration.ofMinutes(15);
+
+  private record Prefetch(Instant time, long threadId) { }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final TreeSet<Prefetch> prefetches = new TreeSet<>(Comparator.comparing(Prefetch::time).thenComparingLong(Prefetch::threadId));
+  private final Map<Long, Prefetch> prefetchesByThread = new HashMap<>();
+
+  public Optional<ZonedDateTime> getNextPrefetchTime() {
+    try {
+      lock.lock();
+      return prefetches.isEmpty() ? Optional.empty() : Optional.of(ZonedDateTime.ofInstant(prefetches.first().time(), ZoneOffset.UTC));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the prefetches that are due and returns their thread ids.
+   */
+  public List<Long> getPrefetchesBefore(ZonedDateTime time) {
+    Instant instant = time.toInstant();
+    List<Long> due = new ArrayList<>();
+    try {
+      lock.lock();
+      while (!prefetches.isEmpty() && !prefetches.first().time().isAfter(instant)) {
+        Prefetch prefetch = prefetches.pollFirst();
+        prefetchesByThread.remove(prefetch.threadId());
+        due.add(prefetch.threadId());
+      }
+    } finally {
+      lock.unlock();
+    }
+    return due;
+  }
+
+  /**
+   * Schedules the starter message of the thread to be fetched a while before its alarm, replacing
+   * anything already scheduled for it.
+   */
+  void schedule(long threadId, Instant alarmTime) {
+    Prefetch prefetch = new Prefetch(alarmTime.minus(WINDOW), threadId);
+    try {
+      lock.lock();
+      Prefetch previous = prefetchesByThread.put(threadId, prefetch);
+      if (previous != null) {
+        prefetches.remove(previous);
+      }
+      prefetches.add(prefetch);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.ajanuary.reactalarms.bot;
+
+import com.ajanuary.reactalarms.db.Database;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Keeps the database from growing across an event by removing DMs that are finished with and the
+ * fingerprints of threads that have gone, and giving the space back. It runs as the lowest priority
+ * lane on the timer service, and puts itself off if alarms or DMs are about to go out.
+ */
+public class Housekeeping {
+  private static final Logger LOGGER = LogManager.getLogger();
+
+  // Give startup a chance to finish before the first run.
+  private static final Duration INITIAL_DELAY = Duration.ofMinutes(5);
+  private static final Duration INTERVAL = Duration.ofHours(1);
+  // How far away the next alarm or DM has to be for us to run.
+  private static final Duration QUIET_PERIOD = Duration.ofMinutes(2);
+
+  private final Database database;
+  private final Bot bot;
+  private final BooleanSupplier isBusy;
+  private volatile ZonedDateTime nextRunTime = ZonedDateTime.now().plus(INITIAL_DELAY);
+
+  /**
+   * @param isBusy whether DMs are being sent right now
+   */
+  public Housekeeping(Database database, Bot bot, BooleanSupplier isBusy) {
+    this.database = database;
+    this.bot = bot;
+    this.isBusy = isBusy;
+  }
+
+  public Optional<ZonedDateTime> getNextRunTime() {
+    return Optional.of(nextRunTime);
+  }
+
+  public List<ZonedDateTime> getRunsBefore(ZonedDateTime time) {
+    return nextRunTime.isAfter(time) ? List.of() : List.of(nextRunTime);
+  }
+
+  public void run(ZonedDateTime scheduledTime) {
+    ZonedDateTime now = ZonedDateTime.now();
+    if (isPeak(now)) {
+      LOGGER.debug("Alarms or DMs are due soon. Putting off housekeeping");
+      nextRunTime = now.plus(QUIET_PERIOD);
+      return;
+    }
+    nextRunTime = now.plus(INTERVAL);
+
+    try {
+      int prunedDMs = pruneDMs(now);
+      int prunedFingerprints = pruneFingerprints();
+      long pagesFreed = database.compact();
+      StorageStats stats = database.getStorageStats();
+      LOGGER.info("Housekeeping pruned {} DMs and {} fingerprints and freed {} pages. Database is {} pages of {} bytes, {} of them free. Rows: {}",
+          Unbox.box(prunedDMs), Unbox.box(prunedFingerprints), Unbox.box(pagesFreed), Unbox.box(stats.pageCount()), Unbox.box(stats.pageSize()), Unbox.box(stats.freePages()), formatRowCounts(stats.rowCounts()));
+    } catch (SQLException e) {
+      LOGGER.error("Error running housekeeping", e);
+    }
+  }
+
+  private int pruneDMs(ZonedDateTime now) throws SQLException {
+    // Anything still pending this long after its time would be given up on as soon as it was picked up.
+    ZonedDateTime cutoff = now.minus(bot.getConfig().maxTimeAfterToNotify());
+    // Pending DMs still hold on to their alarm's rendered message. We run on the timer service's
+    // thread, so none of these can be picked up in between.
+    List<Long> pendingThreadIds = database.getPendingDMThreadIdsBefore(cutoff);
+    int pruned = database.deleteScheduledDMsBefore(cutoff);
+    pendingThreadIds.forEach(bot::releaseRenderedMessage);
+    return pruned;
+  }
+
+  /**
+   * Removes the fingerprints of threads that aren't in any configured forum any more, for example
+   * because they were deleted while we weren't running. Reconciling only looks at the threads in the
+   * forums, so these would never be used.
+   */
+  private int pruneFingerprints() throws SQLException {
+    Optional<Set<Long>> threadIds = bot.getThreadIdsInConfiguredForums();
+    if (threadIds.isEmpty()) {
+      LOGGER.warn("Not all the configured forums could be found. Not pruning fingerprints");
+      return 0;
+    }
+    int pruned = 0;
+    for (long threadId : database.getThreadFingerprints().keySet()) {
+      if (!threadIds.get().contains(threadId)) {
+        database.deleteThreadFingerprint(threadId);
+        pruned++;
+      }
+    }
+    return pruned;
+  }
+
+  private boolean isPeak(ZonedDateTime now) {
+    if (isBusy.getAsBoolean()) {
+      return true;
+    }
+    ZonedDateTime quietUntil = now.plus(QUIET_PERIOD);
+    try {
+      Optional<ZonedDateTime> nextAlarm = database.getNextAlarmTime();
+      Optional<ZonedDateTime> nextDM = database.getNextDMTime();
+      return nextAlarm.filter(time -> time.isBefore(quietUntil)).isPresent() || nextDM.filter(time -> time.isBefore(quietUntil)).isPresent();
+    } catch (SQLException e) {
+      LOGGER.error("Error checking for upcoming alarms and DMs", e);
+      return true;
+    }
+  }
+
+  private static String formatRowCounts(Map<String, Long> rowCounts) {
+    return rowCounts.entrySet().stream().map(entry -> entry.getKey() + "=" + entry.getValue()).collect(Collectors.joining(", "));
+  }
+}
@@ -0,0 +1,197 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Adds and clears the alarm reactions on threads one at a time, in the background.
+ *
+ * <p>Reactions share Discord's rate limits with the DMs, and the DMs matter more, so while DMs are
+ * being sent the queue holds off (for up to {@link #MAX_DEFERRAL} in total). Changes to the same thread that
+ * haven't been made yet are merged, so a thread that is renamed several times in quick succession
+ * only costs one request.
+ */
+public class ReactionQueue {
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final Duration BUSY_POLL_INTERVAL = Duration.ofMillis(250);
+  private static final Duration MAX_DEFERRAL = Duration.ofSeconds(30);
+
+  private enum Operation {
+    ADD(false, true),
+    CLEAR(true, false),
+    CLEAR_THEN_ADD(true, true);
+
+    private final boolean clears;
+    private final boolean adds;
+
+    Operation(boolean clears, boolean adds) {
+      this.clears = clears;
+      this.adds = adds;
+    }
+
+    Operation then(Operation next) {
+      if (next == CLEAR) {
+        // Clearing removes our reaction too, so there's no point adding it first.
+        return CLEAR;
+      }
+      return this.clears ? CLEAR_THEN_ADD : next;
+    }
+  }
+
+  private final JDA jda;
+  private final Emoji emoji;
+  private final BooleanSupplier isBusy;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // In the order the threads were first queued.
+  private final Map<Long, Operation> pending = new LinkedHashMap<>();
+  private final Thread thread;
+  private volatile boolean running = true;
+  // When the queue stops holding off for the DMs currently being sent. Only used by the queue's
+  // thread, and cleared once they've finished, so a long run of DMs holds the queue up once rather
+  // than once per reaction.
+  private Instant busyDeadline;
+
+  public ReactionQueue(JDA jda, Emoji emoji, BooleanSupplier isBusy) {
+    this.jda = jda;
+    this.emoji = emoji;
+    this.isBusy = isBusy;
+    thread = new Thread(() -> {
+      try {
+        while (true) {
+          if (!waitForWork()) {
+            break;
+          }
+          waitUntilNotBusy();
+
+          long threadId;
+          Operation operation;
+          try {
+            lock.lock();
+            Iterator<Map.Entry<Long, Operation>> it = pending.entrySet().iterator();
+            Map.Entry<Long, Operation> next = it.next();
+            threadId = next.getKey();
+            operation = next.getValue();
+            it.remove();
+          } finally {
+            lock.unlock();
+          }
+          execute(threadId, operation);
+        }
+      } catch (InterruptedException e) {
+        // Allow the thread to die
+      }
+      LOGGER.info("Reaction queue stopped");
+    });
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  public void addReaction(long threadId) {
+    enqueue(threadId, Operation.ADD);
+  }
+
+  public void clearReactions(long threadId) {
+    enqueue(threadId, Operation.CLEAR);
+  }
+
+  /**
+   * Stops the queue once everything already queued has been done.
+   *
+   * @return true if the queue was emptied within the timeout, or false if it had to be interrupted
+   */
+  public boolean drain(Duration timeout) throws InterruptedException {
+    running = false;
+    try {
+      lock.lock();
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+    thread.join(Math.max(1, timeout.toMillis()));
+    if (thread.isAlive()) {
+      LOGGER.warn("Reaction queue did not drain in time. Interrupting");
+      thread.interrupt();
+      thread.join();
+      return false;
+    }
+    return true;
+  }
+
+  private void enqueue(long threadId, Operation operation) {
+    try {
+      lock.lock();
+      pending.merge(threadId, operation, Operation::then);
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return false if the queue has been stopped and there's nothing left to do
+   */
+  private boolean waitForWork() throws InterruptedException {
+    try {
+      lock.lock();
+      while (pending.isEmpty()) {
+        if (!running) {
+          return false;
+        }
+        changed.await();
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void waitUntilNotBusy() throws InterruptedException {
+    while (running && isBusy.getAsBoolean()) {
+      if (busyDeadline == null) {
+        busyDeadline = Instant.now().plus(MAX_DEFERRAL);
+      }
+      if (!Instant.now().isBefore(busyDeadline)) {
+        return;
+      }
+      TimeUnit.MILLISECONDS.sleep(Math.min(BUSY_POLL_INTERVAL.toMillis(), Math.max(1, ChronoUnit.MILLIS.between(Instant.now(), busyDeadline))));
+    }
+    busyDeadline = null;
+  }
+
+  private void execute(long threadId, Operation operation) {
+    ThreadChannel thread = jda.getThreadChannelById(threadId);
+    if (thread == null) {
+      LOGGER.warn("Could not find thread {}. Not updating its reactions", Unbox.box(threadId));
+      return;
+    }
+    // The first message in a thread has the same id as the thread, so we never need to fetch it.
+    // These block so that only one reaction request is ever waiting on the rate limit.
+    try {
+      if (operation.clears) {
+        thread.clearReactionsById(threadId, emoji).complete();
+      }
+      if (operation.adds) {
+        thread.addReactionById(threadId, emoji).complete();
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Error updating reactions for thread {}", Unbox.box(threadId), e);
+    }
+  }
+}
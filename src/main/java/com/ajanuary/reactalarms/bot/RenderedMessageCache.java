@@ -0,0 +1,36 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
+
+/**
+ * Holds the rendered DM for each alarm that is currently sending DMs, so it only needs to be built
+ * once no matter how many people reacted. An entry is evicted once every DM for the alarm has either
+ * been sent or given up on.
+ */
+class RenderedMessageCache {
+  private record Entry(MessageCreateData message, int remaining) { }
+
+  private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+  public void put(long threadId, MessageCreateData message, int recipients) {
+    if (recipients > 0) {
+      entries.put(threadId, new Entry(message, recipients));
+    }
+  }
+
+  public MessageCreateData get(long threadId, Supplier<MessageCreateData> render) {
+    Entry entry = entries.get(threadId);
+    if (entry == null) {
+      // Most likely the DMs were queued before a restart. They're rare enough it's not worth caching.
+      return render.get();
+    }
+    return entry.message();
+  }
+
+  public void release(long threadId) {
+    entries.computeIfPresent(threadId, (key, entry) -> entry.remaining() <= 1 ? null : new Entry(entry.message(), entry.remaining() - 1));
+  }
+}
@@ -0,0 +1,6 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.util.Map;
+
+public record StorageStats(long pageSize, long pageCount, long freePages, Map<String, Long> rowCounts) {
+}
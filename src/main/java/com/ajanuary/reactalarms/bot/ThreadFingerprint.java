@@ -0,0 +1,7 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.time.Instant;
+import java.util.Optional;
+
+public record ThreadFingerprint(long threadId, String fingerprint, Optional<Instant> alarmTime) {
+}
@@ -0,0 +1,34 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The details of each thread with an alarm that go into the DM. Keeping these up to date from
+ * gateway events means we don't have to ask Discord for them when the alarm goes off.
+ */
+class ThreadMetadataCache {
+  public record ThreadMetadata(String title, String url, Optional<String> tags, Optional<String> description) { }
+
+  private final Map<Long, ThreadMetadata> entries = new ConcurrentHashMap<>();
+
+  public void updateThread(long threadId, String title, String url, Optional<String> tags) {
+    entries.compute(threadId, (key, existing) -> new ThreadMetadata(title, url, tags, existing == null ? Optional.empty() : existing.description()));
+  }
+
+  /**
+   * @return false if the thread isn't being tracked, in which case nothing is stored
+   */
+  public boolean updateDescription(long threadId, String description) {
+    return entries.computeIfPresent(threadId, (key, existing) -> new ThreadMetadata(existing.title(), existing.url(), existing.tags(), Optional.of(description))) != null;
+  }
+
+  public Optional<ThreadMetadata> get(long threadId) {
+    return Optional.ofNullable(entries.get(threadId));
+  }
+
+  public void remove(long threadId) {
+    entries.remove(threadId);
+  }
+}
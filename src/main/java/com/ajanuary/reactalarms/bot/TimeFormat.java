@@ -0,0 +1,30 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+public enum TimeFormat {
+  /** Hours and minutes with no am/pm, e.g. {@code 13:00} or {@code 9.15}. */
+  TWENTY_FOUR_HOUR("24h"),
+  /** An hour with an am/pm indicator and optional minutes, e.g. {@code 1pm} or {@code 9.15 a.m.}. */
+  TWELVE_HOUR("12h"),
+  /**
+   * A range where only the end has an am/pm indicator, e.g. {@code 1-2pm}. The start time takes its
+   * am/pm from the end.
+   */
+  RANGE("range");
+
+  private final String configName;
+
+  TimeFormat(String configName) {
+    this.configName = configName;
+  }
+
+  public String configName() {
+    return configName;
+  }
+
+  public static Optional<TimeFormat> fromConfigName(String configName) {
+    return Arrays.stream(values()).filter(format -> format.configName.equalsIgnoreCase(configName)).findFirst();
+  }
+}
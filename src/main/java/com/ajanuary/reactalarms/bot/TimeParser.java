@@ -0,0 +1,199 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Parses the time from the start of a forum post title.
+ *
+ * <p>This used to be done with a regular expression, but titles are parsed on every create and
+ * rename and for every thread when reconciling, so it is now a hand written scanner that doesn't
+ * backtrack or allocate while scanning. For the 24h and 12h formats it accepts the same titles as
+ * the old expression:
+ * {@code ^\W*(\d{1,2})(?:[:. ](\d{2}))?(?:\s*(am|a\.m\.?|pm|p\.m\.?))?(?:\W+|$)}
+ */
+public class TimeParser {
+  private static final int NO_MINUTES = -1;
+  private static final int NO_MERIDIEM = 0;
+  private static final int AM = 1;
+  private static final int PM = 2;
+
+  private record Time(int hour, int minutes, int meridiem, int end) { }
+
+  private final Set<TimeFormat> formats;
+
+  public TimeParser(Set<TimeFormat> formats) {
+    this.formats = formats.isEmpty() ? EnumSet.noneOf(TimeFormat.class) : EnumSet.copyOf(formats);
+  }
+
+  public Optional<LocalTime> parse(String title) {
+    int pos = 0;
+    while (pos < title.length() && !isWordChar(title.charAt(pos))) {
+      pos++;
+    }
+
+    Time start = scanTime(title, pos);
+    if (start == null) {
+      return Optional.empty();
+    }
+
+    if (start.meridiem != NO_MERIDIEM) {
+      if (!formats.contains(TimeFormat.TWELVE_HOUR)) {
+        return Optional.empty();
+      }
+      return toLocalTime(start.hour, start.minutes, start.meridiem);
+    }
+
+    if (formats.contains(TimeFormat.RANGE)) {
+      Time end = scanRangeEnd(title, start.end);
+      if (end != null && end.meridiem != NO_MERIDIEM) {
+        // "11-1pm" is 11am to 1pm, but "10-11pm" is 10pm to 11pm.
+        int meridiem = (start.hour % 12) > (end.hour % 12) ? otherMeridiem(end.meridiem) : end.meridiem;
+        return toLocalTime(start.hour, start.minutes, meridiem);
+      }
+    }
+
+    if (start.minutes == NO_MINUTES || !formats.contains(TimeFormat.TWENTY_FOUR_HOUR)) {
+      // If we have neither minutes nor an am/pm indicator, then it just starts with a number.
+      // These aren't really times.
+      return Optional.empty();
+    }
+    return toLocalTime(start.hour, start.minutes, NO_MERIDIEM);
+  }
+
+  /**
+   * Scans a time starting at {@code pos}. The time must be followed by the end of the title or a
+   * non-word character.
+   *
+   * @return null if there isn't a time at {@code pos}
+   */
+  private static Time scanTime(String title, int pos) {
+    int length = title.length();
+    if (pos >= length || !isDigit(title.charAt(pos))) {
+      return null;
+    }
+    int hour = title.charAt(pos) - '0';
+    pos++;
+    if (pos < length && isDigit(title.charAt(pos))) {
+      hour = hour * 10 + (title.charAt(pos) - '0');
+      pos++;
+    }
+    if (pos < length && isDigit(title.charAt(pos))) {
+      // Three or more digits isn't a time.
+      return null;
+    }
+
+    int minutes = NO_MINUTES;
+    int afterMinutes = pos;
+    if (pos + 2 < length && isMinuteSeparator(title.charAt(pos)) && isDigit(title.charAt(pos + 1)) && isDigit(title.charAt(pos + 2))) {
+      minutes = (title.charAt(pos + 1) - '0') * 10 + (title.charAt(pos + 2) - '0');
+      afterMinutes = pos + 3;
+    }
+
+    int afterMeridiem = scanMeridiem(title, afterMinutes);
+    if (afterMeridiem >= 0 && isBoundary(title, afterMeridiem)) {
+      int meridiem = Character.toLowerCase(title.charAt(skipWhitespace(title, afterMinutes))) == 'p' ? PM : AM;
+      return new Time(hour, minutes, meridiem, afterMeridiem);
+    }
+    if (isBoundary(title, afterMinutes)) {
+      return new Time(hour, minutes, NO_MERIDIEM, afterMinutes);
+    }
+    // The regex would backtrack and drop the minutes here. Whatever followed the hour was a minute
+    // separator, so that always matches, but without minutes or am/pm it isn't a time.
+    return minutes == NO_MINUTES ? null : new Time(hour, NO_MINUTES, NO_MERIDIEM, pos);
+  }
+
+  /**
+   * @return the position after an am/pm indicator starting at {@code pos}, or -1 if there isn't one
+   */
+  private static int scanMeridiem(String title, int pos) {
+    int length = title.length();
+    pos = skipWhitespace(title, pos);
+    if (pos >= length) {
+      return -1;
+    }
+    char first = Character.toLowerCase(title.charAt(pos));
+    if (first != 'a' && first != 'p') {
+      return -1;
+    }
+    pos++;
+    if (pos < length && title.charAt(pos) == '.') {
+      pos++;
+    }
+    if (pos >= length || Character.toLowerCase(title.charAt(pos)) != 'm') {
+      return -1;
+    }
+    // A trailing '.' is allowed, but it's a non-word character so the boundary check covers it.
+    return pos + 1;
+  }
+
+  /**
+   * Scans the end of a range like "1-2pm", "1 - 2pm" or "1 to 2pm" starting at {@code pos}.
+   *
+   * @return null if there isn't a range end at {@code pos}
+   */
+  private static Time scanRangeEnd(String title, int pos) {
+    int length = title.length();
+    pos = skipWhitespace(title, pos);
+    if (pos < length && isRangeSeparator(title.charAt(pos))) {
+      pos++;
+    } else if (pos + 1 < length && Character.toLowerCase(title.charAt(pos)) == 't' && Character.toLowerCase(title.charAt(pos + 1)) == 'o') {
+      pos += 2;
+    } else {
+      return null;
+    }
+    return scanTime(title, skipWhitespace(title, pos));
+  }
+
+  private static Optional<LocalTime> toLocalTime(int hour, int minutes, int meridiem) {
+    if (hour == 12 && meridiem != NO_MERIDIEM) {
+      // 12am is midnight and 12pm is midday.
+      hour = meridiem == PM ? 12 : 0;
+    } else if (meridiem == PM) {
+      hour += 12;
+    }
+    if (hour > 23 || minutes > 59) {
+      return Optional.empty();
+    }
+    return Optional.of(LocalTime.of(hour, minutes == NO_MINUTES ? 0 : minutes));
+  }
+
+  private static int otherMeridiem(int meridiem) {
+    return meridiem == AM ? PM : AM;
+  }
+
+  private static int skipWhitespace(String title, int pos) {
+    while (pos < title.length() && isWhitespace(title.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isBoundary(String title, int pos) {
+    return pos >= title.length() || !isWordChar(title.charAt(pos));
+  }
+
+  // These match the ASCII-only definitions of \d, \w and \s used by java.util.regex by default.
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isWordChar(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private static boolean isMinuteSeparator(char c) {
+    return c == ':' || c == '.' || c == ' ';
+  }
+
+  private static boolean isRangeSeparator(char c) {
+    return c == '-' || c == '\u2013' || c == '\u2014';
+  }
+}
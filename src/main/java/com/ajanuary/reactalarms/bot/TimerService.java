@@ -0,0 +1,317 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAmount;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import net.dv8tion.jda.api.JDA;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Raises events from the database when they are due. Each kind of event gets its own lane with its
+ * own rate limit, but they all share one thread, and when more than one lane has something due the
+ * one with the highest priority goes first.
+ */
+public class TimerService {
+  private static final Logger LOGGER = LogManager.getLogger();
+
+  // If we had an SQL error, hope that it was temporary and try again after this long.
+  private static final Duration ERROR_RETRY_DELAY = Duration.ofMinutes(1);
+
+  @FunctionalInterface
+  public interface NextEventTimeGetter {
+    Optional<ZonedDateTime> get() throws Exception;
+  }
+
+  @FunctionalInterface
+  public interface EventsGetter<T> {
+    List<T> getEventsBefore(ZonedDateTime time) throws Exception;
+  }
+
+  private final JDA jda;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition waiting = lock.newCondition();
+  // Highest priority first.
+  private final List<Lane<?>> lanes = new ArrayList<>();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  public TimerService(JDA jda) {
+    this.jda = jda;
+    thread = new Thread(() -> {
+      try {
+        jda.awaitReady();
+        while (running) {
+          Lane<?> lane = nextReadyLane();
+          if (lane != null) {
+            lane.raiseNext();
+          }
+        }
+      } catch (InterruptedException e) {
+        // Allow the thread to die
+      }
+      LOGGER.info("Timer service stopped");
+    }, "timer-service");
+  }
+
+  /**
+   * Adds a lane. All the lanes need to be added before the service is started.
+   *
+   * @param priority lanes with a higher priority are raised first when more than one has events due
+   */
+  public <T> Lane<T> addLane(String name, int priority, TemporalAmount minTimeBetweenEvents, NextEventTimeGetter getNextEventTime, EventsGetter<T> eventsGetter) {
+    if (thread.isAlive()) {
+      throw new IllegalStateException("Lanes must be added before the timer service is started");
+    }
+    Lane<T> lane = new Lane<>(name, priority, minTimeBetweenEvents, getNextEventTime, eventsGetter);
+    try {
+      lock.lock();
+      lanes.add(lane);
+      lanes.sort(Comparator.comparingInt((Lane<?> l) -> l.priority).reversed());
+    } finally {
+      lock.unlock();
+    }
+    return lane;
+  }
+
+  /**
+   * Starts raising events. The event handler for each lane should be set before calling this.
+   */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Stops the service immediately, interrupting it if it is raising an event.
+   */
+  public void stop() {
+    running = false;
+    thread.interrupt();
+  }
+
+  /**
+   * Stops the service once the event currently being raised (if any) has been handed off. Events
+   * that haven't been raised yet are left in the database.
+   *
+   * @return true if the service stopped within the timeout, or false if it had to be interrupted
+   */
+  public boolean drain(Duration timeout) throws InterruptedException {
+    running = false;
+    wakeUp();
+    thread.join(Math.max(1, timeout.toMillis()));
+    if (thread.isAlive()) {
+      LOGGER.warn("Timer service did not drain in time. Interrupting");
+      stop();
+      thread.join();
+      return false;
+    }
+    return true;
+  }
+
+  private void wakeUp() {
+    try {
+      lock.lock();
+      waiting.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until a lane has an event that is due and that it is allowed to raise.
+   *
+   * @return the lane, or null if the service has been stopped
+   */
+  private Lane<?> nextReadyLane() throws InterruptedException {
+    try {
+      lock.lock();
+      while (running) {
+        Instant now = Instant.now();
+        Instant wakeAt = null;
+        for (Lane<?> lane : lanes) {
+          Optional<Instant> readyAt = lane.readyAt(now);
+          if (readyAt.isEmpty()) {
+            continue;
+          }
+          if (!readyAt.get().isAfter(now)) {
+            return lane;
+          }
+          if (wakeAt == null || readyAt.get().isBefore(wakeAt)) {
+            wakeAt = readyAt.get();
+          }
+        }
+        if (wakeAt == null) {
+          LOGGER.debug("Waiting for a db notification");
+          waiting.await();
+        } else {
+          long millisToSleep = Math.max(1, ChronoUnit.MILLIS.between(now, wakeAt));
+          LOGGER.debug("Waiting for {} ms until {}", Unbox.box(millisToSleep), wakeAt);
+          waiting.await(millisToSleep, TimeUnit.MILLISECONDS);
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * One kind of event. Everything except the notifications and settings is only touched with the
+   * service's lock held.
+   */
+  public final class Lane<T> {
+    private final String name;
+    private final int priority;
+    private final NextEventTimeGetter getNextEventTime;
+    private final EventsGetter<T> eventsGetter;
+    private volatile TemporalAmount minTimeBetweenEvents;
+    private volatile Consumer<T> onEvent;
+    private volatile boolean raisingEvents = false;
+
+    // Whether nextEventTime needs to be read from the database again.
+    private boolean stale = true;
+    private Optional<ZonedDateTime> nextEventTime = Optional.empty();
+    private Instant retryAt = null;
+    // Events that are due but haven't been raised yet, because of the rate limit or another lane.
+    private final Deque<T> batch = new ArrayDeque<>();
+    private Instant timeCanRaiseNextEvent = Instant.EPOCH;
+
+    private Lane(String name, int priority, TemporalAmount minTimeBetweenEvents, NextEventTimeGetter getNextEventTime, EventsGetter<T> eventsGetter) {
+      this.name = name;
+      this.priority = priority;
+      this.minTimeBetweenEvents = minTimeBetweenEvents;
+      this.getNextEventTime = getNextEventTime;
+      this.eventsGetter = eventsGetter;
+    }
+
+    public void setOnEvent(Consumer<T> onEvent) {
+      this.onEvent = onEvent;
+    }
+
+    public void setMinTimeBetweenEvents(TemporalAmount minTimeBetweenEvents) {
+      this.minTimeBetweenEvents = minTimeBetweenEvents;
+    }
+
+    /**
+     * @return whether the lane is part way through raising a batch of events
+     */
+    public boolean isBusy() {
+      return raisingEvents;
+    }
+
+    /**
+     * Tells the lane that something it raises has been added or moved earlier. There's no need to
+     * call this when something is removed or moved later; the lane will find out when it wakes up.
+     */
+    public void notifyOfDbChange() {
+      LOGGER.debug("Notified of db change for {}", name);
+      try {
+        lock.lock();
+        stale = true;
+        waiting.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return when the lane can next raise an event, or empty if there is nothing to raise
+     */
+    private Optional<Instant> readyAt(Instant now) {
+      if (retryAt != null) {
+        if (retryAt.isAfter(now)) {
+          return Optional.of(retryAt);
+        }
+        retryAt = null;
+        stale = true;
+      }
+      if (stale) {
+        // Anything in the batch might have changed, and is still in the database anyway.
+        batch.clear();
+        raisingEvents = false;
+        try {
+          nextEventTime = getNextEventTime.get();
+          stale = false;
+        } catch (Exception e) {
+          LOGGER.error("Error getting next event for {}", name, e);
+          retryAt = now.plus(ERROR_RETRY_DELAY);
+          return Optional.of(retryAt);
+        }
+      }
+      if (!batch.isEmpty()) {
+        return Optional.of(timeCanRaiseNextEvent);
+      }
+      if (onEvent == null) {
+        return Optional.empty();
+      }
+      // Events are due once their time has passed, rather than when it is reached.
+      return nextEventTime.map(time -> max(time.toInstant().plusMillis(1), timeCanRaiseNextEvent));
+    }
+
+    /**
+     * Raises the next event, fetching the events that are due if we haven't already. This is called
+     * without the lock held, so that notifications don't have to wait for the handler.
+     */
+    private void raiseNext() throws InterruptedException {
+      T event;
+      try {
+        lock.lock();
+        if (batch.isEmpty()) {
+          try {
+            batch.addAll(eventsGetter.getEventsBefore(ZonedDateTime.now()));
+          } catch (Exception e) {
+            LOGGER.error("Error getting events for {}", name, e);
+            retryAt = Instant.now().plus(ERROR_RETRY_DELAY);
+            return;
+          }
+        }
+        event = batch.poll();
+        raisingEvents = event != null;
+        if (batch.isEmpty()) {
+          // Find out when the next lot is due.
+          stale = true;
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (event == null) {
+        return;
+      }
+
+      try {
+        LOGGER.debug("Triggering {} event", name);
+        onEvent.accept(event);
+      } catch (RuntimeException e) {
+        LOGGER.error("Error raising {} event", name, e);
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+
+      try {
+        lock.lock();
+        timeCanRaiseNextEvent = Instant.now().plus(minTimeBetweenEvents);
+        raisingEvents = !batch.isEmpty();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static Instant max(Instant a, Instant b) {
+    return a.isAfter(b) ? a : b;
+  }
+}
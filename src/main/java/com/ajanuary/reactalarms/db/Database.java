@@ -1,16 +1,20 @@
 package com.ajanuary.reactalarms.db;
 
 import com.ajanuary.reactalarms.bot.Alarm;
+import com.ajanuary.reactalarms.bot.DMStatus;
 import com.ajanuary.reactalarms.bot.ScheduledDM;
+import com.ajanuary.reactalarms.bot.StorageStats;
+import com.ajanuary.reactalarms.bot.ThreadFingerprint;
 import com.ajanuary.reactalarms.bot.WithId;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface Database {
   void addAlarm(Alarm alarm) throws SQLException;
-  Optional<Integer> getAlarmIdForThread(String threadId) throws SQLException;
+  Optional<WithId<Alarm>> getAlarmForThread(long threadId) throws SQLException;
   void updateAlarm(WithId<Alarm> alarmWithId) throws SQLException;
   boolean deleteAlarm(int id) throws SQLException;
   Optional<ZonedDateTime> getNextAlarmTime() throws SQLException;
@@ -18,5 +22,16 @@ public interface Database {
   void addScheduledDM(ScheduledDM event) throws SQLException;
   Optional<ZonedDateTime> getNextDMTime() throws SQLException;
   List<WithId<ScheduledDM>> getDMsScheduledBefore(ZonedDateTime zonedDateTime) throws SQLException;
-  boolean deleteScheduledDM(int dmId) throws SQLException;
+  void setScheduledDMStatus(int dmId, DMStatus status) throws SQLException;
+  int recordFailedDMAttempt(int dmId) throws SQLException;
+  void rescheduleDM(int dmId, ZonedDateTime nextAttemptTime) throws SQLException;
+  int resetInFlightDMs() throws SQLException;
+  Map<Long, ThreadFingerprint> getThreadFingerprints() throws SQLException;
+  void saveThreadFingerprint(ThreadFingerprint fingerprint) throws SQLException;
+  void deleteThreadFingerprint(long threadId) throws SQLException;
+  List<Long> getPendingDMThreadIdsBefore(ZonedDateTime time) throws SQLException;
+  int deleteScheduledDMsBefore(ZonedDateTime time) throws SQLException;
+  long compact() throws SQLException;
+  StorageStats getStorageStats() throws SQLException;
+  void close() throws SQLException;
 }
@@ -1,7 +1,10 @@
 package com.ajanuary.reactalarms.db;
 
 import com.ajanuary.reactalarms.bot.Alarm;
+import com.ajanuary.reactalarms.bot.DMStatus;
 import com.ajanuary.reactalarms.bot.ScheduledDM;
+import com.ajanuary.reactalarms.bot.StorageStats;
+import com.ajanuary.reactalarms.bot.ThreadFingerprint;
 import com.ajanuary.reactalarms.bot.WithId;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -14,12 +17,22 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SqliteDatabase implements Database {
 
+  // Bump this and add a step to migrateSchema whenever the schema changes.
+  private static final int SCHEMA_VERSION = 5;
+
   private final Connection connection;
+  // Zones never change once they've been added, so these can be cached forever.
+  private final Map<ZoneId, Integer> zoneRefs = new ConcurrentHashMap<>();
+  private final Map<Integer, ZoneId> zonesByRef = new ConcurrentHashMap<>();
 
   public SqliteDatabase(String path) throws SQLException {
     connection = DriverManager.getConnection("jdbc:sqlite:" + path);
@@ -27,50 +40,231 @@ public class SqliteDatabase implements Database {
 
   public void createSchema() throws SQLException {
     try (Statement statement = connection.createStatement()) {
-      statement.executeUpdate("""
-        create table alarm
-        (
-          id integer primary key autoincrement,
-          forum_id string not null,
-          thread_id string not null,
-          time integer not null,
-          timezone string not null
-        )
-        """);
-      statement.executeUpdate("create unique index idx_alarm_thread_id on alarm(thread_id)");
-      statement.executeUpdate("create index idx_alarm_time on alarm(time)");
-
-      // We're deliberately denormalizing the data here. It makes the code a lot simpler, and the
-      // size of the data isn't going to break the bank.
-      statement.executeUpdate("""
-        create table scheduled_dm
-        (
-          id integer primary key autoincrement,
-          forum_id string not null,
-          thread_id string not null,
-          user_id string not null,
-          time integer not null,
-          timezone string not null,
-          title string not null,
-          url string not null,
-          description string not null,
-          tags string
-        )
-        """);
-      statement.executeUpdate("create index idx_scheduled_dm_time on scheduled_dm(time)");
+      // Lets housekeeping give the space from deleted rows back. This has to be set before any tables exist.
+      statement.executeUpdate("pragma auto_vacuum = incremental");
+      createZoneTable(statement);
+      createAlarmTable(statement);
+      createScheduledDMTable(statement);
+      createThreadFingerprintTable(statement);
+      statement.executeUpdate("pragma user_version = " + SCHEMA_VERSION);
+    }
+  }
+
+  public void migrateSchema() throws SQLException {
+    int version;
+    try (Statement statement = connection.createStatement()) {
+      ResultSet rs = statement.executeQuery("pragma user_version");
+      rs.next();
+      version = rs.getInt(1);
+    }
+    // Databases created before we started versioning the schema report 0.
+    if (version == 0) {
+      version = 1;
+    }
+    if (version == SCHEMA_VERSION) {
+      return;
+    }
+
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try (Statement statement = connection.createStatement()) {
+      if (version < 2) {
+        statement.executeUpdate("alter table scheduled_dm add column status string not null default 'pending'");
+        statement.executeUpdate("alter table scheduled_dm add column attempts integer not null default 0");
+        statement.executeUpdate("alter table scheduled_dm add column next_attempt_time integer not null default 0");
+        statement.executeUpdate("update scheduled_dm set next_attempt_time = time");
+        statement.executeUpdate("create index idx_scheduled_dm_next_attempt on scheduled_dm(status, next_attempt_time)");
+      }
+      if (version < 3) {
+        statement.executeUpdate("""
+          create table thread_fingerprint
+          (
+            thread_id string primary key,
+            fingerprint string not null,
+            alarm_time integer
+          )
+          """);
+      }
+      if (version < 4) {
+        // Snowflakes go from strings to integers, and the timezone name on every row is replaced with a
+        // reference to the zone table. SQLite can't change column types, so the tables are rebuilt.
+        createZoneTable(statement);
+        statement.executeUpdate("""
+          insert or ignore into zone (name)
+          select timezone from alarm
+          union
+          select timezone from scheduled_dm
+          """);
+
+        statement.executeUpdate("drop index idx_alarm_thread_id");
+        statement.executeUpdate("drop index idx_alarm_time");
+        statement.executeUpdate("alter table alarm rename to alarm_old");
+        createAlarmTable(statement);
+        statement.executeUpdate("""
+          insert into alarm (id, forum_id, thread_id, time, zone_id)
+          select a.id, cast(a.forum_id as integer), cast(a.thread_id as integer), a.time, z.id
+          from alarm_old a join zone z on z.name = a.timezone
+          """);
+        statement.executeUpdate("drop table alarm_old");
+
+        statement.executeUpdate("drop index idx_scheduled_dm_time");
+        statement.executeUpdate("drop index idx_scheduled_dm_next_attempt");
+        statement.executeUpdate("alter table scheduled_dm rename to scheduled_dm_old");
+        createScheduledDMTable(statement);
+        statement.executeUpdate("""
+          insert into scheduled_dm (id, forum_id, thread_id, user_id, time, zone_id, title, url, description, tags, status, attempts, next_attempt_time)
+          select d.id, cast(d.forum_id as integer), cast(d.thread_id as integer), cast(d.user_id as integer), d.time, z.id, d.title, d.url, d.description, d.tags, d.status, d.attempts, d.next_attempt_time
+          from scheduled_dm_old d join zone z on z.name = d.timezone
+          """);
+        statement.executeUpdate("drop table scheduled_dm_old");
+
+        statement.executeUpdate("alter table thread_fingerprint rename to thread_fingerprint_old");
+        createThreadFingerprintTable(statement);
+        statement.executeUpdate("""
+          insert into thread_fingerprint (thread_id, fingerprint, alarm_time)
+          select cast(thread_id as integer), fingerprint, alarm_time
+          from thread_fingerprint_old
+          """);
+        statement.executeUpdate("drop table thread_fingerprint_old");
+      }
+      // Version 5 is only recorded once the vacuum below has finished, so that if it fails it's tried
+      // again next time.
+      statement.executeUpdate("pragma user_version = 4");
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+
+    if (version < 5) {
+      // Turning on auto_vacuum for an existing database only takes effect after a full vacuum, which
+      // can't be run inside a transaction.
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("pragma auto_vacuum = incremental");
+        statement.executeUpdate("vacuum");
+      }
+    }
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("pragma user_version = " + SCHEMA_VERSION);
+    }
+  }
+
+  private void createZoneTable(Statement statement) throws SQLException {
+    // Every alarm and DM is in the configured zone, so there's no point repeating its name on every row.
+    statement.executeUpdate("""
+      create table zone
+      (
+        id integer primary key,
+        name string not null unique
+      )
+      """);
+  }
+
+  private void createAlarmTable(Statement statement) throws SQLException {
+    statement.executeUpdate("""
+      create table alarm
+      (
+        id integer primary key autoincrement,
+        forum_id integer not null,
+        thread_id integer not null,
+        time integer not null,
+        zone_id integer not null references zone(id)
+      )
+      """);
+    statement.executeUpdate("create unique index idx_alarm_thread_id on alarm(thread_id)");
+    statement.executeUpdate("create index idx_alarm_time on alarm(time)");
+  }
+
+  private void createScheduledDMTable(Statement statement) throws SQLException {
+    // We're deliberately denormalizing the data here. It makes the code a lot simpler, and the
+    // size of the data isn't going to break the bank.
+    statement.executeUpdate("""
+      create table scheduled_dm
+      (
+        id integer primary key autoincrement,
+        forum_id integer not null,
+        thread_id integer not null,
+        user_id integer not null,
+        time integer not null,
+        zone_id integer not null references zone(id),
+        title string not null,
+        url string not null,
+        description string not null,
+        tags string,
+        status string not null default 'pending',
+        attempts integer not null default 0,
+        next_attempt_time integer not null
+      )
+      """);
+    statement.executeUpdate("create index idx_scheduled_dm_time on scheduled_dm(time)");
+    statement.executeUpdate("create index idx_scheduled_dm_next_attempt on scheduled_dm(status, next_attempt_time)");
+  }
+
+  private void createThreadFingerprintTable(Statement statement) throws SQLException {
+    // What each thread looked like the last time we processed it, so that we can skip threads that
+    // haven't changed when reconciling on startup.
+    statement.executeUpdate("""
+      create table thread_fingerprint
+      (
+        thread_id integer primary key,
+        fingerprint string not null,
+        alarm_time integer
+      )
+      """);
+  }
+
+  private int getZoneRef(ZoneId zone) throws SQLException {
+    Integer cached = zoneRefs.get(zone);
+    if (cached != null) {
+      return cached;
+    }
+    try (PreparedStatement statement = connection.prepareStatement("insert or ignore into zone (name) values (?)")) {
+      statement.setString(1, zone.getId());
+      statement.executeUpdate();
+    }
+    try (PreparedStatement statement = connection.prepareStatement("select id from zone where name = ?")) {
+      statement.setString(1, zone.getId());
+      ResultSet rs = statement.executeQuery();
+      if (!rs.next()) {
+        throw new SQLException("Error adding zone " + zone.getId());
+      }
+      int ref = rs.getInt(1);
+      zoneRefs.put(zone, ref);
+      zonesByRef.put(ref, zone);
+      return ref;
+    }
+  }
+
+  private ZoneId getZone(int ref) throws SQLException {
+    ZoneId cached = zonesByRef.get(ref);
+    if (cached != null) {
+      return cached;
+    }
+    try (PreparedStatement statement = connection.prepareStatement("select name from zone where id = ?")) {
+      statement.setInt(1, ref);
+      ResultSet rs = statement.executeQuery();
+      if (!rs.next()) {
+        throw new SQLException("No zone with id " + ref);
+      }
+      ZoneId zone = ZoneId.of(rs.getString(1));
+      zoneRefs.put(zone, ref);
+      zonesByRef.put(ref, zone);
+      return zone;
     }
   }
 
   @Override
   public void addAlarm(Alarm alarm) throws SQLException {
     try (PreparedStatement statement = connection.prepareStatement("""
-        insert into alarm (forum_id, thread_id, time, timezone)
+        insert into alarm (forum_id, thread_id, time, zone_id)
         values (?, ?, ?, ?)
         """)) {
-      statement.setString(1, alarm.forumId());
-      statement.setString(2, alarm.threadId());
+      statement.setLong(1, alarm.forumId());
+      statement.setLong(2, alarm.threadId());
       statement.setLong(3, alarm.time().toInstant().toEpochMilli());
-      statement.setString(4, alarm.time().getZone().getId());
+      statement.setInt(4, getZoneRef(alarm.time().getZone()));
 
       int rowsAffected = statement.executeUpdate();
       if (rowsAffected != 1) {
@@ -80,22 +274,29 @@ public class SqliteDatabase implements Database {
   }
 
   @Override
-  public Optional<Integer> getAlarmIdForThread(String threadId) throws SQLException {
+  public Optional<WithId<Alarm>> getAlarmForThread(long threadId) throws SQLException {
     try (PreparedStatement statement = connection.prepareStatement("""
         select
-          id
+          id,
+          forum_id,
+          time,
+          zone_id
         from
           alarm
         where
           thread_id = ?
         """)) {
-      statement.setString(1, threadId);
+      statement.setLong(1, threadId);
       ResultSet rs = statement.executeQuery();
       if (!rs.next()) {
         return Optional.empty();
       }
       int id = rs.getInt(1);
-      return Optional.of(id);
+      long forumId = rs.getLong(2);
+      long millisSinceEpoch = rs.getLong(3);
+      ZoneId zoneId = getZone(rs.getInt(4));
+      ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millisSinceEpoch), zoneId);
+      return Optional.of(new WithId<>(id, new Alarm(forumId, threadId, start)));
     }
   }
 
@@ -106,11 +307,11 @@ public class SqliteDatabase implements Database {
           alarm
         set
           time = ?,
-          timezone = ?
+          zone_id = ?
         where
           id = ?""")) {
       statement.setLong(1, alarmWithId.item().time().toInstant().toEpochMilli());
-      statement.setString(2, alarmWithId.item().time().getZone().getId());
+      statement.setInt(2, getZoneRef(alarmWithId.item().time().getZone()));
       statement.setInt(3, alarmWithId.id());
 
       int rowsAffected = statement.executeUpdate();
@@ -143,7 +344,7 @@ public class SqliteDatabase implements Database {
       statement.execute("""
           select
             time,
-            timezone
+            zone_id
           from
             alarm
           order by time asc
@@ -154,7 +355,7 @@ public class SqliteDatabase implements Database {
         return Optional.empty();
       }
       long millisSinceEpoch = rs.getLong(1);
-      ZoneId zoneId = ZoneId.of(rs.getString(2));
+      ZoneId zoneId = getZone(rs.getInt(2));
       ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millisSinceEpoch), zoneId);
       return Optional.of(start);
     }
@@ -168,7 +369,7 @@ public class SqliteDatabase implements Database {
           forum_id,
           thread_id,
           time,
-          timezone
+          zone_id
         from
           alarm
         where
@@ -179,10 +380,10 @@ public class SqliteDatabase implements Database {
       List<WithId<Alarm>> results = new ArrayList<>();
       while (rs.next()) {
         int id = rs.getInt(1);
-        String forumId = rs.getString(2);
-        String threadId = rs.getString(3);
+        long forumId = rs.getLong(2);
+        long threadId = rs.getLong(3);
         long millisSinceEpoch = rs.getLong(4);
-        ZoneId zoneId = ZoneId.of(rs.getString(5));
+        ZoneId zoneId = getZone(rs.getInt(5));
         ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millisSinceEpoch), zoneId);
         results.add(new WithId<>(id, new Alarm(forumId, threadId, start)));
       }
@@ -193,14 +394,14 @@ public class SqliteDatabase implements Database {
   @Override
   public void addScheduledDM(ScheduledDM scheduledDM) throws SQLException {
     try (PreparedStatement statement = connection.prepareStatement("""
-        insert into scheduled_dm (forum_id, thread_id, user_id, time, timezone, title, url, description, tags)
-        values (?, ?, ?, ?, ?, ?, ?, ?, ?)
+        insert into scheduled_dm (forum_id, thread_id, user_id, time, zone_id, title, url, description, tags, next_attempt_time)
+        values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
         """)) {
-      statement.setString(1, scheduledDM.forumId());
-      statement.setString(2, scheduledDM.threadId());
-      statement.setString(3, scheduledDM.userId());
+      statement.setLong(1, scheduledDM.forumId());
+      statement.setLong(2, scheduledDM.threadId());
+      statement.setLong(3, scheduledDM.userId());
       statement.setLong(4, scheduledDM.time().toInstant().toEpochMilli());
-      statement.setString(5, scheduledDM.time().getZone().getId());
+      statement.setInt(5, getZoneRef(scheduledDM.time().getZone()));
       statement.setString(6, scheduledDM.title());
       statement.setString(7, scheduledDM.url());
       statement.setString(8, scheduledDM.description());
@@ -209,6 +410,7 @@ public class SqliteDatabase implements Database {
       } else {
         statement.setNull(9, Types.VARCHAR);
       }
+      statement.setLong(10, scheduledDM.time().toInstant().toEpochMilli());
 
       int rowsAffected = statement.executeUpdate();
       if (rowsAffected != 1) {
@@ -222,11 +424,13 @@ public class SqliteDatabase implements Database {
     try (Statement statement = connection.createStatement()) {
       statement.execute("""
           select
-            time,
-            timezone
+            next_attempt_time,
+            zone_id
           from
             scheduled_dm
-          order by time asc
+          where
+            status = 'pending'
+          order by next_attempt_time asc
           limit 1
           """);
       ResultSet rs = statement.getResultSet();
@@ -234,7 +438,7 @@ public class SqliteDatabase implements Database {
         return Optional.empty();
       }
       long millisSinceEpoch = rs.getLong(1);
-      ZoneId zoneId = ZoneId.of(rs.getString(2));
+      ZoneId zoneId = getZone(rs.getInt(2));
       ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millisSinceEpoch), zoneId);
       return Optional.of(start);
     }
@@ -249,7 +453,7 @@ public class SqliteDatabase implements Database {
           thread_id,
           user_id,
           time,
-          timezone,
+          zone_id,
           title,
           url,
           description,
@@ -257,18 +461,22 @@ public class SqliteDatabase implements Database {
         from
           scheduled_dm
         where
-          time <= ?
+          status = 'pending'
+          and next_attempt_time <= ?
+        order by
+          attempts asc,
+          next_attempt_time asc
         """)) {
       statement.setLong(1, time.toInstant().toEpochMilli());
       ResultSet rs = statement.executeQuery();
       List<WithId<ScheduledDM>> results = new ArrayList<>();
       while (rs.next()) {
         int id = rs.getInt(1);
-        String forumId = rs.getString(2);
-        String threadId = rs.getString(3);
-        String userId = rs.getString(4);
+        long forumId = rs.getLong(2);
+        long threadId = rs.getLong(3);
+        long userId = rs.getLong(4);
         long millisSinceEpoch = rs.getLong(5);
-        ZoneId zoneId = ZoneId.of(rs.getString(6));
+        ZoneId zoneId = getZone(rs.getInt(6));
         String title = rs.getString(7);
         String url = rs.getString(8);
         String description = rs.getString(9);
@@ -281,19 +489,214 @@ public class SqliteDatabase implements Database {
   }
 
   @Override
-  public boolean deleteScheduledDM(int dmId) throws SQLException {
+  public void setScheduledDMStatus(int dmId, DMStatus status) throws SQLException {
     try (PreparedStatement statement = connection.prepareStatement("""
-        delete from
+        update
+          scheduled_dm
+        set
+          status = ?
+        where
+          id = ?""")) {
+      statement.setString(1, status.dbValue());
+      statement.setInt(2, dmId);
+
+      int rowsAffected = statement.executeUpdate();
+      if (rowsAffected != 1) {
+        throw new SQLException("Error updating scheduled dm status. Expected to update 1 row but got " + rowsAffected);
+      }
+    }
+  }
+
+  @Override
+  public int recordFailedDMAttempt(int dmId) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        update
           scheduled_dm
+        set
+          attempts = attempts + 1
         where
           id = ?""")) {
       statement.setInt(1, dmId);
 
       int rowsAffected = statement.executeUpdate();
-      if (rowsAffected > 1) {
-        throw new SQLException("Error deleting scheduled dm. Expected to delete 1 row but got " + rowsAffected);
+      if (rowsAffected != 1) {
+        throw new SQLException("Error recording failed attempt. Expected to update 1 row but got " + rowsAffected);
       }
-      return rowsAffected == 1;
     }
+    try (PreparedStatement statement = connection.prepareStatement("""
+        select
+          attempts
+        from
+          scheduled_dm
+        where
+          id = ?""")) {
+      statement.setInt(1, dmId);
+      ResultSet rs = statement.executeQuery();
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  @Override
+  public void rescheduleDM(int dmId, ZonedDateTime nextAttemptTime) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        update
+          scheduled_dm
+        set
+          status = 'pending',
+          next_attempt_time = ?
+        where
+          id = ?""")) {
+      statement.setLong(1, nextAttemptTime.toInstant().toEpochMilli());
+      statement.setInt(2, dmId);
+
+      int rowsAffected = statement.executeUpdate();
+      if (rowsAffected != 1) {
+        throw new SQLException("Error rescheduling dm. Expected to update 1 row but got " + rowsAffected);
+      }
+    }
+  }
+
+  @Override
+  public int resetInFlightDMs() throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      return statement.executeUpdate("update scheduled_dm set status = 'pending' where status = 'in_flight'");
+    }
+  }
+
+  @Override
+  public Map<Long, ThreadFingerprint> getThreadFingerprints() throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      ResultSet rs = statement.executeQuery("""
+          select
+            thread_id,
+            fingerprint,
+            alarm_time
+          from
+            thread_fingerprint
+          """);
+      Map<Long, ThreadFingerprint> results = new HashMap<>();
+      while (rs.next()) {
+        long threadId = rs.getLong(1);
+        String fingerprint = rs.getString(2);
+        long alarmTime = rs.getLong(3);
+        Optional<Instant> alarmTimeM = rs.wasNull() ? Optional.empty() : Optional.of(Instant.ofEpochMilli(alarmTime));
+        results.put(threadId, new ThreadFingerprint(threadId, fingerprint, alarmTimeM));
+      }
+      return results;
+    }
+  }
+
+  @Override
+  public void saveThreadFingerprint(ThreadFingerprint fingerprint) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        insert or replace into thread_fingerprint (thread_id, fingerprint, alarm_time)
+        values (?, ?, ?)
+        """)) {
+      statement.setLong(1, fingerprint.threadId());
+      statement.setString(2, fingerprint.fingerprint());
+      if (fingerprint.alarmTime().isPresent()) {
+        statement.setLong(3, fingerprint.alarmTime().get().toEpochMilli());
+      } else {
+        statement.setNull(3, Types.INTEGER);
+      }
+
+      int rowsAffected = statement.executeUpdate();
+      if (rowsAffected != 1) {
+        throw new SQLException("Error saving thread fingerprint. Expected to insert 1 row but got " + rowsAffected);
+      }
+    }
+  }
+
+  @Override
+  public void deleteThreadFingerprint(long threadId) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        delete from
+          thread_fingerprint
+        where
+          thread_id = ?""")) {
+      statement.setLong(1, threadId);
+      statement.executeUpdate();
+    }
+  }
+
+  @Override
+  public List<Long> getPendingDMThreadIdsBefore(ZonedDateTime time) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        select
+          thread_id
+        from
+          scheduled_dm
+        where
+          status = 'pending'
+          and time < ?""")) {
+      statement.setLong(1, time.toInstant().toEpochMilli());
+      ResultSet rs = statement.executeQuery();
+      List<Long> results = new ArrayList<>();
+      while (rs.next()) {
+        results.add(rs.getLong(1));
+      }
+      return results;
+    }
+  }
+
+  @Override
+  public int deleteScheduledDMsBefore(ZonedDateTime time) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("""
+        delete from
+          scheduled_dm
+        where
+          status != 'in_flight'
+          and time < ?""")) {
+      statement.setLong(1, time.toInstant().toEpochMilli());
+      return statement.executeUpdate();
+    }
+  }
+
+  @Override
+  public long compact() throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      long freePagesBefore = queryLong(statement, "pragma freelist_count");
+      long freePages = freePagesBefore;
+      // incremental_vacuum frees a page each time it is stepped, and whether the driver steps it more
+      // than once isn't something we can rely on, so keep going until the free list stops shrinking.
+      while (freePages > 0) {
+        statement.execute("pragma incremental_vacuum(" + freePages + ")");
+        long remaining = queryLong(statement, "pragma freelist_count");
+        if (remaining >= freePages) {
+          break;
+        }
+        freePages = remaining;
+      }
+      statement.execute("pragma optimize");
+      return freePagesBefore - freePages;
+    }
+  }
+
+  @Override
+  public StorageStats getStorageStats() throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      long pageSize = queryLong(statement, "pragma page_size");
+      long pageCount = queryLong(statement, "pragma page_count");
+      long freePages = queryLong(statement, "pragma freelist_count");
+      Map<String, Long> rowCounts = new LinkedHashMap<>();
+      for (String table : List.of("alarm", "scheduled_dm", "thread_fingerprint", "zone")) {
+        rowCounts.put(table, queryLong(statement, "select count(*) from " + table));
+      }
+      return new StorageStats(pageSize, pageCount, freePages, rowCounts);
+    }
+  }
+
+  private static long queryLong(Statement statement, String sql) throws SQLException {
+    ResultSet rs = statement.executeQuery(sql);
+    if (!rs.next()) {
+      throw new SQLException("No result for " + sql);
+    }
+    return rs.getLong(1);
+  }
+
+  @Override
+  public void close() throws SQLException {
+    connection.close();
   }
 }
@@ -0,0 +1,59 @@
+package com.ajanuary.reactalarms.bot;
+
+import java.lang.management.ManagementFactory;
+import java.time.ZonedDateTime;
+import java.util.Optional;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Measures the cost of logging on the thread that does the logging, using the real log4j2.xml. Run
+ * it with {@code ./gradlew loggingBenchmark}, which writes its logs under build/logging-benchmark.
+ *
+ * <p>For each style it reports calls per second and bytes allocated per call by the calling thread.
+ * The allocation figures come from com.sun.management.ThreadMXBean, so they need a HotSpot JVM.
+ * Results go to stderr, because stdout is where the console appender writes.
+ */
+public class LoggingBenchmark {
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int WARMUP = 200_000;
+  private static final int ITERATIONS = 1_000_000;
+
+  private interface Call {
+    void run(int i);
+  }
+
+  public static void main(String[] args) {
+    WithId<ScheduledDM> dm = new WithId<>(1234, new ScheduledDM(1000000000000000001L, 2000000000000000001L, 3000000000000000001L,
+        ZonedDateTime.now(), "13:00 Opening ceremony", "https://discord.com", "Benchmark", Optional.empty()));
+    String user = "someone";
+
+    System.err.println("Enabled (info)");
+    run("concatenated", i -> LOGGER.info("Error sending message to user " + user + " when handling DM " + i));
+    run("parameterised", i -> LOGGER.info("Error sending message to user {} when handling DM {}", user, Unbox.box(i)));
+    run("DMEventLog.record", i -> DMEventLog.record(dm, "sent"));
+
+    System.err.println("Disabled (debug)");
+    run("concatenated", i -> LOGGER.debug("Waiting for " + i + " ms until " + user));
+    run("parameterised", i -> LOGGER.debug("Waiting for {} ms until {}", Unbox.box(i), user));
+
+    LogManager.shutdown();
+  }
+
+  private static void run(String name, Call call) {
+    for (int i = 0; i < WARMUP; i++) {
+      call.run(i);
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      call.run(i);
+    }
+    long nanos = System.nanoTime() - start;
+    long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+    System.err.printf("  %-18s %,12.0f calls/s %8.1f bytes/call%n", name, ITERATIONS * 1e9 / nanos, (double) bytes / ITERATIONS);
+  }
+}
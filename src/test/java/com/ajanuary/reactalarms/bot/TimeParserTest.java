@@ -0,0 +1,92 @@
+package com.ajanuary.reactalarms.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class TimeParserTest {
+  // The expression TimeParser replaced.
+  private static final Pattern OLD_TIME_PATTERN = Pattern.compile("^\\W*(\\d{1,2})(?:[:. ](\\d{2}))?(?:\\s*(am|a\\.m\\.?|pm|p\\.m\\.?))?(?:\\W+|$)", Pattern.CASE_INSENSITIVE);
+  private static final String ALPHABET = "0123456789012345678901234567890123456789:. -\u2013to\tAaPpMm.:!#()[]/x_";
+
+  private static final Set<TimeFormat> DEFAULT_FORMATS = EnumSet.of(TimeFormat.TWENTY_FOUR_HOUR, TimeFormat.TWELVE_HOUR);
+  private static final Set<TimeFormat> RANGE_FORMATS = EnumSet.of(TimeFormat.TWELVE_HOUR, TimeFormat.RANGE);
+
+  /**
+   * What the old regex parsed, with the deliberate changes: 12am is midnight, 12pm is midday, and
+   * times that are out of range are ignored rather than throwing.
+   */
+  private static Optional<LocalTime> oldParse(String title) {
+    Matcher matcher = OLD_TIME_PATTERN.matcher(title);
+    if (!matcher.find()) {
+      return Optional.empty();
+    }
+    int hour = Integer.parseInt(matcher.group(1));
+    String minsStr = matcher.group(2);
+    int mins = minsStr == null ? 0 : Integer.parseInt(minsStr);
+    String amPm = matcher.group(3);
+    if (minsStr == null && amPm == null) {
+      return Optional.empty();
+    }
+    if (amPm != null && hour == 12) {
+      hour = amPm.toLowerCase().startsWith("p") ? 12 : 0;
+    } else if (amPm != null && amPm.toLowerCase().startsWith("p")) {
+      hour += 12;
+    }
+    if (hour > 23 || mins > 59) {
+      return Optional.empty();
+    }
+    return Optional.of(LocalTime.of(hour, mins));
+  }
+
+  @Test
+  void matchesOldRegexOnRandomTitles() {
+    TimeParser parser = new TimeParser(DEFAULT_FORMATS);
+    Random random = new Random(20230401);
+    for (int i = 0; i < 500_000; i++) {
+      StringBuilder title = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        title.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      String t = title.toString();
+      assertEquals(oldParse(t), parser.parse(t), () -> "Title '" + t + "'");
+    }
+  }
+
+  @Test
+  void matchesOldRegexOnTypicalTitles() {
+    TimeParser parser = new TimeParser(DEFAULT_FORMATS);
+    for (String title : new String[] {
+        "13:00 Opening ceremony", "9.15 a.m. Breakfast", "1pm Lunch", "1 PM Lunch", "09 30 Yoga",
+        "[10:00] Panel", "10:00-11:00 Panel", "2023 Retrospective", "100 years of sci-fi", "Panel at 10:00",
+        "12am Midnight feast", "12pm Lunch", "13pm Nonsense", "24:00 Nonsense", "10:60 Nonsense", "10:00am",
+        "10:00amazing", "10amazing", "1.5 hours", "" }) {
+      assertEquals(oldParse(title), parser.parse(title), () -> "Title '" + title + "'");
+    }
+  }
+
+  @Test
+  void rangeTakesMeridiemFromEnd() {
+    TimeParser parser = new TimeParser(RANGE_FORMATS);
+    assertEquals(Optional.of(LocalTime.of(11, 30)), parser.parse("11:30 to 12:30pm Brunch"));
+    assertEquals(Optional.of(LocalTime.of(11, 0)), parser.parse("11-1pm Workshop"));
+    assertEquals(Optional.of(LocalTime.of(22, 0)), parser.parse("10-11pm Disco"));
+    assertEquals(Optional.of(LocalTime.of(13, 0)), parser.parse("1 - 2pm Panel"));
+    assertEquals(Optional.of(LocalTime.of(12, 0)), parser.parse("12\u20131pm Lunch"));
+    assertEquals(Optional.of(LocalTime.of(9, 0)), parser.parse("9-10am Yoga"));
+  }
+
+  @Test
+  void rangeIsOnlyUsedWhenEnabled() {
+    assertEquals(Optional.empty(), new TimeParser(DEFAULT_FORMATS).parse("11-1pm Workshop"));
+    assertEquals(Optional.empty(), new TimeParser(RANGE_FORMATS).parse("13:00 Opening ceremony"));
+  }
+}